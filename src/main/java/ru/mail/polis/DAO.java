@@ -22,7 +22,9 @@ import org.jetbrains.annotations.Nullable;
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -96,6 +98,50 @@ public interface DAO extends Closeable {
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Applies all upserts and removes of the batch.
+     * The default implementation applies them one by one.
+     */
+    default void apply(@NotNull WriteBatch batch) throws IOException {
+        for (final WriteBatch.Operation operation : batch.getOperations()) {
+            final ByteBuffer value = operation.getValue();
+            if (value == null) {
+                remove(operation.getKey());
+            } else {
+                upsert(operation.getKey(), value);
+            }
+        }
+    }
+
+    /**
+     * Removes all values with keys from "from" (inclusive) until "to" (exclusive).
+     * The default implementation removes the keys one by one.
+     *
+     * @param to upper bound (exclusive) or {@code null} to remove up to the last key
+     */
+    default void removeRange(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final Iterator<Record> iter = range(from, to);
+        while (iter.hasNext()) {
+            keys.add(iter.next().getKey());
+        }
+        for (final ByteBuffer key : keys) {
+            remove(key);
+        }
+    }
+
+    /**
+     * Opens a consistent read view of the current state.
+     *
+     * @throws UnsupportedOperationException if the storage has no snapshots
+     */
+    @NotNull
+    default Snapshot snapshot() throws IOException {
+        throw new UnsupportedOperationException("Snapshots are not supported");
+    }
+
     /**
      * Perform compaction
      */
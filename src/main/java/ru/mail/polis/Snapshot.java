@@ -0,0 +1,52 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Point-in-time read view of a {@link DAO}: sees the writes completed before it was taken and none after.
+ * Must be closed to let the storage drop the versions and files it keeps for the snapshot.
+ */
+public interface Snapshot extends Closeable {
+
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s of the snapshot starting at "from" key (inclusive)
+     * in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
+     */
+    @NotNull
+    Iterator<Record> iterator(@NotNull ByteBuffer from) throws IOException;
+
+    /**
+     * Provides iterator (possibly empty) over {@link Record}s of the snapshot starting at "from" key (inclusive)
+     * until given "to" key (exclusive) in <b>ascending</b> order according to {@link Record#compareTo(Record)}.
+     */
+    @NotNull
+    default Iterator<Record> range(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        if (to == null) {
+            return iterator(from);
+        }
+
+        if (from.compareTo(to) > 0) {
+            return Iters.empty();
+        }
+
+        final Record bound = new Record(to, ByteBuffer.allocate(0));
+        return Iters.until(iterator(from), bound);
+    }
+
+    /**
+     * Obtains value of the snapshot corresponding to given key.
+     *
+     * @throws NoSuchElementException if no such record
+     */
+    @NotNull
+    ByteBuffer get(@NotNull ByteBuffer key) throws IOException, NoSuchElementException;
+}
@@ -0,0 +1,75 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Group of upserts and removes applied by {@link DAO#apply(WriteBatch)} as a whole.
+ * Operations on the same key are applied in the order they were added.
+ */
+public final class WriteBatch {
+    private final List<Operation> operations = new ArrayList<>();
+
+    public WriteBatch upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        operations.add(new Operation(key.duplicate(), value.duplicate()));
+        return this;
+    }
+
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        operations.add(new Operation(key.duplicate(), null));
+        return this;
+    }
+
+    @NotNull
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    /**
+     * Single upsert or remove of a batch.
+     */
+    public static final class Operation {
+        private final ByteBuffer key;
+        @Nullable
+        private final ByteBuffer value;
+
+        Operation(
+                @NotNull final ByteBuffer key,
+                @Nullable final ByteBuffer value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @NotNull
+        public ByteBuffer getKey() {
+            return key.duplicate();
+        }
+
+        /**
+         * Value to upsert or {@code null} for a remove.
+         */
+        @Nullable
+        public ByteBuffer getValue() {
+            return value == null ? null : value.duplicate();
+        }
+
+        public boolean isRemove() {
+            return value == null;
+        }
+    }
+}
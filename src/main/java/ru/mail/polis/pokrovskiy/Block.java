@@ -0,0 +1,119 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/** Распакованный блок таблицы: записи, за ними смещения точек рестарта и их количество.
+ * В блоках со сжатием префиксов запись хранит длину общего с предыдущим ключом префикса и остаток ключа,
+ * ключ в точке рестарта хранится целиком. В блоках формата 2 каждая запись является точкой рестарта.
+ */
+final class Block {
+    static final byte TOMBSTONE = 1;
+
+    private final ByteBuffer data;
+    private final boolean prefixed;
+    private final int restarts;
+    private final int restartsStart;
+
+    Block(@NotNull final ByteBuffer data, final boolean prefixed) {
+        this.data = data;
+        this.prefixed = prefixed;
+        this.restarts = data.getInt(data.limit() - Integer.BYTES);
+        this.restartsStart = data.limit() - Integer.BYTES - Integer.BYTES * restarts;
+    }
+
+    @NotNull
+    Cursor first() {
+        return new Cursor(restarts == 0 ? restartsStart : restart(0));
+    }
+
+    /** Курсор на первой записи с ключом не меньше key.
+     */
+    @NotNull
+    Cursor seek(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = restarts - 1;
+        while (left < right) {
+            final int mid = (left + right + 1) >>> 1;
+            if (restartKey(mid).compareTo(key) < 0) {
+                left = mid;
+            } else {
+                right = mid - 1;
+            }
+        }
+        final Cursor cursor = new Cursor(restarts == 0 ? restartsStart : restart(left));
+        while (cursor.isValid() && cursor.key().compareTo(key) < 0) {
+            cursor.next();
+        }
+        return cursor;
+    }
+
+    private int restart(final int index) {
+        return data.getInt(restartsStart + Integer.BYTES * index);
+    }
+
+    @NotNull
+    private ByteBuffer restartKey(final int index) {
+        final ByteBuffer entry = data.duplicate().position(restart(index));
+        if (prefixed) {
+            Varint.getInt(entry);
+        }
+        final int keySize = Varint.getInt(entry);
+        return entry.limit(entry.position() + keySize).slice();
+    }
+
+    final class Cursor {
+        private int next;
+        private ByteBuffer key;
+        private long timestamp;
+        private boolean tombstone;
+        private ByteBuffer value;
+
+        private Cursor(final int position) {
+            this.next = position;
+            next();
+        }
+
+        boolean isValid() {
+            return key != null;
+        }
+
+        @NotNull
+        ByteBuffer key() {
+            return key;
+        }
+
+        @NotNull
+        Cell cell(final long generation) {
+            return new Cell(key, new Value(value, timestamp, tombstone), generation);
+        }
+
+        void next() {
+            if (next >= restartsStart) {
+                key = null;
+                return;
+            }
+            final ByteBuffer entry = data.duplicate().position(next);
+            final int shared = prefixed ? Varint.getInt(entry) : 0;
+            final int keySize = Varint.getInt(entry);
+            final ByteBuffer suffix = entry.duplicate().limit(entry.position() + keySize).slice();
+            if (shared == 0) {
+                key = suffix;
+            } else {
+                key = ByteBuffer.allocate(shared + keySize).put(key.duplicate().limit(shared)).put(suffix).flip();
+            }
+            entry.position(entry.position() + keySize);
+            timestamp = Varint.getLong(entry);
+            tombstone = entry.get() == TOMBSTONE;
+            if (tombstone) {
+                value = null;
+            } else {
+                final int valueSize = Varint.getInt(entry);
+                value = entry.duplicate().limit(entry.position() + valueSize).slice();
+                entry.position(entry.position() + valueSize);
+            }
+            next = entry.position();
+        }
+    }
+}
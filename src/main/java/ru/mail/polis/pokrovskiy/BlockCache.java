@@ -0,0 +1,265 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/** Общий для всех таблиц хранилища кэш блоков вне кучи: прочитанных через канал и распакованных.
+ * Кэш разбит на полосы по хэшу ключа блока, у каждой полосы своя блокировка и своя память,
+ * так что чтения разных блоков из разных потоков не ждут друг друга.
+ * Память делится на страницы по 4 КБ и выделяется кусками по мере заполнения, так что неиспользуемый кэш
+ * памяти не занимает. Блок занимает нужное число страниц в любом порядке
+ * и копируется в кучу при попадании, поэтому вытеснение не портит уже выданные блоки.
+ * Вытеснение сегментированное: новый блок попадает в испытательный сегмент и переходит в защищённый
+ * только при повторном обращении, так что однократное чтение всей таблицы не вымывает горячие блоки.
+ */
+final class BlockCache {
+    private static final int PAGE_SHIFT = 12;
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+    private static final int SLAB_SHIFT = 12;
+    private static final int SLAB_PAGES = 1 << SLAB_SHIFT;
+    private static final int PROTECTED_PERCENT = 80;
+    private static final int MAX_STRIPES = 16;
+    private static final int MIN_STRIPE_PAGES = 256;
+
+    private final Statistics statistics;
+    private final Stripe[] stripes;
+
+    BlockCache(final long capacity, @NotNull final Statistics statistics) {
+        this.statistics = statistics;
+        final int pages = (int) Math.min(Integer.MAX_VALUE, capacity >>> PAGE_SHIFT);
+        final int count = stripeCount(pages);
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe(pages / count + (i < pages % count ? 1 : 0));
+        }
+    }
+
+    /** Число полос: степень двойки не больше {@link #MAX_STRIPES}, полоса не меньше {@link #MIN_STRIPE_PAGES}
+     * страниц, чтобы в неё помещались большие блоки. Без памяти кэш отключён и полос нет.
+     */
+    private static int stripeCount(final int pages) {
+        if (pages == 0) {
+            return 0;
+        }
+        return Math.max(1, Math.min(MAX_STRIPES, Integer.highestOneBit(pages / MIN_STRIPE_PAGES)));
+    }
+
+    /** Копия блока из кэша или null. Промах учитывает {@link #put}: несжатые блоки отображённых файлов
+     * в кэш не попадают, и их чтение промахом не считается.
+     */
+    @Nullable
+    ByteBuffer get(final long generation, final long offset) {
+        if (stripes.length == 0) {
+            return null;
+        }
+        final Key key = new Key(generation, offset);
+        final ByteBuffer block = stripe(key).get(key);
+        if (block != null) {
+            statistics.blockCacheHit();
+        }
+        return block;
+    }
+
+    /** Помещает распакованный блок, которого не нашлось в кэше.
+     */
+    void put(final long generation, final long offset, @NotNull final ByteBuffer block) {
+        if (stripes.length == 0) {
+            return;
+        }
+        statistics.blockCacheMiss();
+        final Key key = new Key(generation, offset);
+        stripe(key).put(key, block);
+    }
+
+    /** Убирает из кэша блоки таблицы, удалённой компакцией.
+     */
+    void invalidate(final long generation) {
+        for (final Stripe stripe : stripes) {
+            stripe.invalidate(generation);
+        }
+    }
+
+    @NotNull
+    private Stripe stripe(@NotNull final Key key) {
+        final int hash = key.hashCode();
+        return stripes[(hash ^ hash >>> 16) & (stripes.length - 1)];
+    }
+
+    /** Полоса кэша: своя память, свои сегменты вытеснения и указатель ключей по поколениям таблиц.
+     */
+    private final class Stripe {
+        private final ByteBuffer[] slabs;
+        private final int[] freePages;
+        private int freeCount;
+        private final int protectedCapacity;
+        private int protectedPages;
+        private final LinkedHashMap<Key, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<Key, Entry> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<Long, Set<Key>> generations = new HashMap<>();
+
+        Stripe(final int pages) {
+            this.slabs = new ByteBuffer[(pages + SLAB_PAGES - 1) >>> SLAB_SHIFT];
+            this.freePages = new int[pages];
+            for (int i = 0; i < pages; i++) {
+                freePages[i] = pages - 1 - i;
+            }
+            this.freeCount = pages;
+            this.protectedCapacity = (int) ((long) pages * PROTECTED_PERCENT / 100);
+        }
+
+        @Nullable
+        synchronized ByteBuffer get(@NotNull final Key key) {
+            Entry entry = protectedSegment.get(key);
+            if (entry == null) {
+                entry = probation.remove(key);
+                if (entry == null) {
+                    return null;
+                }
+                protect(key, entry);
+            }
+            return copyOut(entry);
+        }
+
+        synchronized void put(@NotNull final Key key, @NotNull final ByteBuffer block) {
+            final int pages = (block.remaining() + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+            if (pages > freePages.length || probation.containsKey(key) || protectedSegment.containsKey(key)) {
+                return;
+            }
+            while (freeCount < pages) {
+                evict(probation.isEmpty() ? protectedSegment : probation);
+            }
+            final Entry entry = new Entry(new int[pages], block.remaining());
+            final ByteBuffer source = block.duplicate();
+            for (int i = 0; i < pages; i++) {
+                final int page = freePages[--freeCount];
+                entry.pages[i] = page;
+                source.limit(Math.min(source.position() + PAGE_SIZE, block.limit()));
+                page(page).put(source);
+            }
+            probation.put(key, entry);
+            generations.computeIfAbsent(key.generation, generation -> new HashSet<>()).add(key);
+        }
+
+        synchronized void invalidate(final long generation) {
+            final Set<Key> keys = generations.remove(generation);
+            if (keys == null) {
+                return;
+            }
+            for (final Key key : keys) {
+                Entry entry = probation.remove(key);
+                if (entry == null) {
+                    entry = protectedSegment.remove(key);
+                    protectedPages -= entry.pages.length;
+                }
+                release(entry);
+            }
+        }
+
+        private void protect(@NotNull final Key key, @NotNull final Entry entry) {
+            protectedSegment.put(key, entry);
+            protectedPages += entry.pages.length;
+            final Iterator<Map.Entry<Key, Entry>> eldest = protectedSegment.entrySet().iterator();
+            while (protectedPages > protectedCapacity && eldest.hasNext()) {
+                final Map.Entry<Key, Entry> demoted = eldest.next();
+                if (demoted.getValue() == entry) {
+                    break;
+                }
+                eldest.remove();
+                protectedPages -= demoted.getValue().pages.length;
+                probation.put(demoted.getKey(), demoted.getValue());
+            }
+        }
+
+        private void evict(@NotNull final Map<Key, Entry> segment) {
+            final Iterator<Map.Entry<Key, Entry>> eldest = segment.entrySet().iterator();
+            final Map.Entry<Key, Entry> eldestEntry = eldest.next();
+            final Key key = eldestEntry.getKey();
+            final Entry entry = eldestEntry.getValue();
+            eldest.remove();
+            if (segment == protectedSegment) {
+                protectedPages -= entry.pages.length;
+            }
+            final Set<Key> keys = generations.get(key.generation);
+            keys.remove(key);
+            if (keys.isEmpty()) {
+                generations.remove(key.generation);
+            }
+            release(entry);
+            statistics.blockCacheEviction();
+        }
+
+        private void release(@NotNull final Entry entry) {
+            for (final int page : entry.pages) {
+                freePages[freeCount++] = page;
+            }
+        }
+
+        @NotNull
+        private ByteBuffer copyOut(@NotNull final Entry entry) {
+            final ByteBuffer result = ByteBuffer.allocate(entry.length);
+            for (final int page : entry.pages) {
+                final ByteBuffer source = page(page);
+                result.put(source.limit(Math.min(PAGE_SIZE, result.remaining())));
+            }
+            return result.flip();
+        }
+
+        /** Страница page; кусок памяти с ней выделяется при первом обращении к любой его странице.
+         */
+        @NotNull
+        private ByteBuffer page(final int page) {
+            final int slab = page >>> SLAB_SHIFT;
+            if (slabs[slab] == null) {
+                final int slabPages = Math.min(SLAB_PAGES, freePages.length - (slab << SLAB_SHIFT));
+                slabs[slab] = ByteBuffer.allocateDirect(slabPages << PAGE_SHIFT);
+            }
+            final int position = (page & (SLAB_PAGES - 1)) << PAGE_SHIFT;
+            return slabs[slab].duplicate().position(position).limit(position + PAGE_SIZE).slice();
+        }
+    }
+
+    private static final class Entry {
+        private final int[] pages;
+        private final int length;
+
+        Entry(@NotNull final int[] pages, final int length) {
+            this.pages = pages;
+            this.length = length;
+        }
+    }
+
+    private static final class Key {
+        private final long generation;
+        private final long offset;
+
+        Key(final long generation, final long offset) {
+            this.generation = generation;
+            this.offset = offset;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return generation == key.generation && offset == key.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(generation) * 31 + Long.hashCode(offset);
+        }
+    }
+}
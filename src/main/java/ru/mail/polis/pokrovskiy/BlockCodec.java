@@ -0,0 +1,131 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/** Сжатие блоков при записи таблицы. Сжатый блок хранится как длина исходных данных и сжатые байты.
+ */
+final class BlockCodec {
+    private static final int HASH_TABLE_SIZE = 1 << 14;
+    private static final int MIN_SAVING_SHIFT = 3;
+
+    private final Compression compression;
+    private byte[] input = new byte[0];
+    private byte[] output = new byte[0];
+    private int[] table;
+    private Deflater deflater;
+
+    BlockCodec(@NotNull final Compression compression) {
+        this.compression = compression;
+    }
+
+    @NotNull
+    Compression getCompression() {
+        return compression;
+    }
+
+    /** Сжимает блок или возвращает null, если сжатие отключено или экономит меньше восьмой части.
+     */
+    @Nullable
+    ByteBuffer compress(@NotNull final ByteBuffer raw) {
+        if (compression == Compression.NONE) {
+            return null;
+        }
+        final int length = raw.remaining();
+        if (input.length < length) {
+            input = new byte[length];
+        }
+        raw.duplicate().get(input, 0, length);
+        final int header = Varint.size(length);
+        final int bound = header + Lz4.maxCompressedLength(length);
+        if (output.length < bound) {
+            output = new byte[bound];
+        }
+        final int compressed = compression == Compression.LZ4 ? lz4(length, header) : deflate(length, header);
+        if (compressed < 0 || header + compressed > length - (length >>> MIN_SAVING_SHIFT)) {
+            return null;
+        }
+        final ByteBuffer result = ByteBuffer.wrap(output, 0, header + compressed);
+        Varint.putLong(result, length);
+        return result.position(0);
+    }
+
+    private int lz4(final int length, final int header) {
+        if (table == null) {
+            table = new int[HASH_TABLE_SIZE];
+        }
+        return Lz4.compress(input, length, output, header, table);
+    }
+
+    private int deflate(final int length, final int header) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        deflater.reset();
+        deflater.setInput(input, 0, length);
+        deflater.finish();
+        final int compressed = deflater.deflate(output, header, output.length - header);
+        return deflater.finished() ? compressed : -1;
+    }
+
+    void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    /** Распаковывает сохранённый блок.
+     * @param compression - способ сжатия блока
+     * @param stored - длина исходных данных и сжатые байты
+     */
+    @NotNull
+    static ByteBuffer decompress(@NotNull final Compression compression,
+                                 @NotNull final ByteBuffer stored) throws IOException {
+        final ByteBuffer source = stored.duplicate();
+        final byte[] result;
+        try {
+            result = new byte[Varint.getInt(source)];
+            final int length = source.remaining();
+            final byte[] compressed;
+            final int offset;
+            if (source.hasArray()) {
+                compressed = source.array();
+                offset = source.arrayOffset() + source.position();
+            } else {
+                compressed = new byte[length];
+                source.get(compressed);
+                offset = 0;
+            }
+            if (compression == Compression.LZ4) {
+                Lz4.decompress(compressed, offset, length, result);
+            } else {
+                inflate(compressed, offset, length, result);
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | DataFormatException e) {
+            throw new IOException("Corrupted " + compression + " block", e);
+        }
+        return ByteBuffer.wrap(result);
+    }
+
+    private static void inflate(@NotNull final byte[] compressed,
+                                final int offset,
+                                final int length,
+                                @NotNull final byte[] result) throws DataFormatException {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, offset, length);
+            final int inflated = inflater.inflate(result);
+            if (inflated != result.length || !inflater.finished()) {
+                throw new DataFormatException("Inflated " + inflated + " bytes, expected " + result.length);
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+}
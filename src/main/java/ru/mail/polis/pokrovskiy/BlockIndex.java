@@ -0,0 +1,129 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Индекс блоков таблицы: границы блоков в файле и разделители ключей.
+ * Разделитель блока не меньше последнего ключа блока и меньше первого ключа следующего.
+ */
+final class BlockIndex {
+    private static final int MAX_RESIDENT_KEYS = 1 << 20;
+
+    private final int count;
+    private final long[] offsets;
+    private final int[] keyStarts;
+    @Nullable
+    private final ByteBuffer keys;
+    private final TableFile data;
+    private final long keysPosition;
+
+    private BlockIndex(@NotNull final long[] offsets,
+                       @NotNull final int[] keyStarts,
+                       @Nullable final ByteBuffer keys,
+                       @NotNull final TableFile data,
+                       final long keysPosition) {
+        this.count = offsets.length - 1;
+        this.offsets = offsets;
+        this.keyStarts = keyStarts;
+        this.keys = keys;
+        this.data = data;
+        this.keysPosition = keysPosition;
+    }
+
+    static int serializedSize(final int count, final int keysSize) {
+        return Integer.BYTES + (Long.BYTES + Integer.BYTES) * (count + 1) + keysSize;
+    }
+
+    /** Записывает индекс: количество блоков, count + 1 смещений, count + 1 начал разделителей и сами разделители.
+     */
+    static void writeTo(@NotNull final ByteBuffer buffer,
+                        @NotNull final long[] offsets,
+                        @NotNull final int[] keyStarts,
+                        final int count,
+                        @NotNull final ByteBuffer keys) {
+        buffer.putInt(count);
+        for (int i = 0; i <= count; i++) {
+            buffer.putLong(offsets[i]);
+        }
+        for (int i = 0; i <= count; i++) {
+            buffer.putInt(keyStarts[i]);
+        }
+        buffer.put(keys.duplicate());
+    }
+
+    /** Читает индекс из секции метаданных.
+     * Слишком большие разделители остаются на диске и читаются при поиске.
+     * @param section - секция индекса
+     * @param data - файл таблицы
+     * @param sectionPosition - смещение секции в файле
+     */
+    @NotNull
+    static BlockIndex readFrom(@NotNull final ByteBuffer section,
+                               @NotNull final TableFile data,
+                               final long sectionPosition) {
+        final int count = section.getInt();
+        final long[] offsets = new long[count + 1];
+        for (int i = 0; i <= count; i++) {
+            offsets[i] = section.getLong();
+        }
+        final int[] keyStarts = new int[count + 1];
+        for (int i = 0; i <= count; i++) {
+            keyStarts[i] = section.getInt();
+        }
+        final long keysPosition = sectionPosition + section.position();
+        if (keyStarts[count] > MAX_RESIDENT_KEYS) {
+            return new BlockIndex(offsets, keyStarts, null, data, keysPosition);
+        }
+        final ByteBuffer keys = ByteBuffer.allocate(keyStarts[count]).put(section).flip();
+        return new BlockIndex(offsets, keyStarts, keys, data, keysPosition);
+    }
+
+    int size() {
+        return count;
+    }
+
+    long offset(final int block) {
+        return offsets[block];
+    }
+
+    int length(final int block) {
+        return (int) (offsets[block + 1] - offsets[block]);
+    }
+
+    /** Номер первого блока, разделитель которого не меньше key, или {@link #size()}.
+     */
+    int ceiling(@NotNull final ByteBuffer key) throws IOException {
+        int left = 0;
+        int right = count - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int compare = separator(mid).compareTo(key);
+            if (compare < 0) {
+                left = mid + 1;
+            } else if (compare > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return left;
+    }
+
+    long sizeInBytes() {
+        final long resident = keys == null ? 0 : keys.capacity();
+        return resident + (long) Long.BYTES * offsets.length + (long) Integer.BYTES * keyStarts.length;
+    }
+
+    @NotNull
+    ByteBuffer separator(final int block) throws IOException {
+        final int start = keyStarts[block];
+        final int end = keyStarts[block + 1];
+        if (keys == null) {
+            return data.read(keysPosition + start, end - start);
+        }
+        return keys.duplicate().position(start).limit(end).slice();
+    }
+}
@@ -0,0 +1,136 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** Таблица формата 2 и выше: блоки записей и индекс блоков в метаданных.
+ */
+final class BlockTableReader implements TableReader {
+    private final TableFile data;
+    private final BlockIndex index;
+    private final long generation;
+    private final long rank;
+    private final boolean prefixed;
+    private final BlockCache cache;
+    private volatile boolean compressed;
+
+    BlockTableReader(@NotNull final TableFile data,
+                     @NotNull final BlockIndex index,
+                     final long generation,
+                     final long rank,
+                     final boolean prefixed,
+                     @NotNull final BlockCache cache) {
+        this.data = data;
+        this.index = index;
+        this.generation = generation;
+        this.rank = rank;
+        this.prefixed = prefixed;
+        this.cache = cache;
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) throws IOException {
+        final int blockIndex = index.ceiling(key);
+        if (blockIndex >= index.size()) {
+            return null;
+        }
+        final Block.Cursor cursor = readBlock(blockIndex).seek(key);
+        if (!cursor.isValid() || !cursor.key().equals(key)) {
+            return null;
+        }
+        return cursor.cell(rank);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        final int first = index.ceiling(from);
+        if (first >= index.size() || to != null && from.compareTo(to) >= 0) {
+            return Collections.emptyIterator();
+        }
+        // Ключи блоков после первого, чей разделитель не меньше to, больше to: такие блоки не читаются
+        final int last = to == null ? index.size() - 1 : Math.min(index.ceiling(to), index.size() - 1);
+        final Block.Cursor firstCursor = readBlock(first).seek(from);
+        return new Iterator<>() {
+            private int blockIndex = first;
+            private Block.Cursor cursor = firstCursor;
+
+            @Override
+            public boolean hasNext() {
+                while (!cursor.isValid() && blockIndex < last) {
+                    try {
+                        cursor = readBlock(++blockIndex).first();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return cursor.isValid() && (to == null || cursor.key().compareTo(to) < 0);
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Cell cell = cursor.cell(rank);
+                cursor.next();
+                return cell;
+            }
+        };
+    }
+
+    @Override
+    public long indexSizeInBytes() {
+        return index.sizeInBytes();
+    }
+
+    @NotNull
+    @Override
+    public List<ByteBuffer> splitKeys(final int count) throws IOException {
+        final int parts = Math.min(count + 1, index.size());
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int part = 1; part < parts; part++) {
+            keys.add(index.separator((int) ((long) part * index.size() / parts) - 1));
+        }
+        return keys;
+    }
+
+    /** Читает блок из файла. Блоки, прочитанные через канал, и распакованные блоки кэшируются в общем кэше.
+     * Несжатые блоки отображённого файла не кэшируются: срез отображения и так не требует копирования,
+     * и пока в такой таблице не встречено сжатых блоков, кэш не опрашивается.
+     */
+    @NotNull
+    private Block readBlock(final int blockIndex) throws IOException {
+        final long offset = index.offset(blockIndex);
+        if (compressed || !data.isMapped()) {
+            final ByteBuffer cached = cache.get(generation, offset);
+            if (cached != null) {
+                return new Block(cached, prefixed);
+            }
+        }
+        final ByteBuffer stored = data.read(offset, index.length(blockIndex));
+        final int codecPosition = stored.limit() - Byte.BYTES;
+        final Compression compression = Compression.of(stored.get(codecPosition));
+        final ByteBuffer payload = stored.limit(codecPosition).slice();
+        if (compression == Compression.NONE) {
+            if (!data.isMapped()) {
+                cache.put(generation, offset, payload);
+            }
+            return new Block(payload, prefixed);
+        }
+        compressed = true;
+        final ByteBuffer block = BlockCodec.decompress(compression, payload);
+        cache.put(generation, offset, block);
+        return new Block(block, prefixed);
+    }
+}
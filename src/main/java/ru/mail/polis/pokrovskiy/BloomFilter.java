@@ -0,0 +1,124 @@
+package ru.mail.polis.pokrovskiy;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+final class BloomFilter {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final int MAX_HASH_COUNT = 30;
+    private static final int FOLD_PRECISION = 4;
+    private static final long MAX_WORDS = Integer.MAX_VALUE - 8;
+
+    private final long[] words;
+    private final int hashCount;
+
+    private BloomFilter(@NotNull final long[] words, final int hashCount) {
+        this.words = words;
+        this.hashCount = hashCount;
+    }
+
+    /** Пустой фильтр на expectedKeys ключей, в который ключи добавляются по мере записи таблицы.
+     * Число слов округляется вверх до кратного большой степени двойки, чтобы {@link #fold}
+     * мог ужать фильтр, если ключей окажется меньше ожидаемого.
+     * @param expectedKeys - оценка сверху количества ключей
+     * @param bitsPerKey - бит фильтра на ключ
+     */
+    @NotNull
+    static BloomFilter create(final long expectedKeys, final int bitsPerKey) {
+        final long words = words(expectedKeys, bitsPerKey);
+        final long step = Math.max(1, Long.highestOneBit(words) >>> FOLD_PRECISION);
+        final long rounded = Math.min(MAX_WORDS, (words + step - 1) / step * step);
+        final int hashCount = (int) Math.max(1, Math.min(MAX_HASH_COUNT, Math.round(bitsPerKey * Math.log(2))));
+        return new BloomFilter(new long[(int) rounded], hashCount);
+    }
+
+    private static long words(final long keys, final int bitsPerKey) {
+        final long bits = Math.max(Long.SIZE, keys * bitsPerKey);
+        return (bits + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    void add(@NotNull final ByteBuffer key) {
+        final long[] hash = hash(key);
+        add(hash[0], hash[1]);
+    }
+
+    /** Фильтр для count добавленных ключей: пока половины слов хватает на count ключей, фильтр складывается
+     * пополам. Бит b переходит в b по модулю вдвое меньшего числа бит, то есть туда же, куда ключ попал бы
+     * в фильтре вдвое меньшего размера, поэтому сложенный фильтр не отличается от построенного заново.
+     */
+    @NotNull
+    BloomFilter fold(final long count, final int bitsPerKey) {
+        final long needed = words(count, bitsPerKey);
+        int length = words.length;
+        while (length % 2 == 0 && length / 2 >= needed) {
+            length /= 2;
+        }
+        if (length == words.length) {
+            return this;
+        }
+        final long[] folded = Arrays.copyOf(words, length);
+        for (int i = length; i < words.length; i++) {
+            folded[i % length] |= words[i];
+        }
+        return new BloomFilter(folded, hashCount);
+    }
+
+    /** 128-битный хеш ключа парой (h1, h2).
+     */
+    @NotNull
+    private static long[] hash(@NotNull final ByteBuffer key) {
+        final byte[] bytes = HASH.hashBytes(key.duplicate()).asBytes();
+        final ByteBuffer hash = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        return new long[] {hash.getLong(), hash.getLong()};
+    }
+
+    private void add(final long h1, final long h2) {
+        final long bits = (long) words.length * Long.SIZE;
+        long combined = h1;
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = (combined & Long.MAX_VALUE) % bits;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+            combined += h2;
+        }
+    }
+
+    boolean mightContain(@NotNull final ByteBuffer key) {
+        final long[] hash = hash(key);
+        final long bits = (long) words.length * Long.SIZE;
+        long combined = hash[0];
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = (combined & Long.MAX_VALUE) % bits;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += hash[1];
+        }
+        return true;
+    }
+
+    int sizeInBytes() {
+        return Integer.BYTES + words.length * Long.BYTES;
+    }
+
+    void writeTo(@NotNull final ByteBuffer buffer) {
+        buffer.putInt(hashCount);
+        for (final long word : words) {
+            buffer.putLong(word);
+        }
+    }
+
+    @NotNull
+    static BloomFilter readFrom(@NotNull final ByteBuffer buffer) {
+        final int hashCount = buffer.getInt();
+        final long[] words = new long[buffer.remaining() / Long.BYTES];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = buffer.getLong();
+        }
+        return new BloomFilter(words, hashCount);
+    }
+}
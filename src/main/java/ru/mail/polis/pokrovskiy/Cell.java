@@ -5,6 +5,11 @@ import java.nio.ByteBuffer;
 import java.util.Comparator;
 
 public class Cell implements Comparable<Cell> {
+    private static final Comparator<Cell> COMPARATOR = Comparator
+            .comparing(Cell::getKey)
+            .thenComparing(Cell::getValue)
+            .thenComparing(Comparator.comparingLong(Cell::getGeneration).reversed());
+
     private final ByteBuffer key;
     private final Value value;
     private final long generation;
@@ -33,17 +38,12 @@ public class Cell implements Comparable<Cell> {
         return value;
     }
 
-    private @NotNull Long getGeneration() {
+    long getGeneration() {
         return generation;
     }
 
     @Override
     public int compareTo(@NotNull final Cell cell) {
-        return Comparator
-                .comparing(Cell::getKey)
-                .thenComparing(Cell::getValue)
-                .thenComparing(Comparator.comparingLong(Cell::getGeneration).reversed())
-                .compare(this, cell);
-
+        return COMPARATOR.compare(this, cell);
     }
 }
@@ -0,0 +1,65 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+final class ChannelTableFile implements TableFile {
+    private final FileChannel channel;
+    private final long size;
+
+    private ChannelTableFile(@NotNull final FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    @NotNull
+    static ChannelTableFile open(@NotNull final Path file) throws IOException {
+        return new ChannelTableFile(FileChannel.open(file, StandardOpenOption.READ));
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public boolean isMapped() {
+        return false;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer read(final long offset, final int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of table at " + position);
+            }
+            position += read;
+        }
+        return buffer.flip();
+    }
+
+    @Override
+    public long readLong(final long offset) throws IOException {
+        return read(offset, Long.BYTES).getLong();
+    }
+
+    @Override
+    public int readInt(final long offset) throws IOException {
+        return read(offset, Integer.BYTES).getInt();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
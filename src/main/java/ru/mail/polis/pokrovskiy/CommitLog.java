@@ -0,0 +1,329 @@
+package ru.mail.polis.pokrovskiy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.Iterables;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.zip.CRC32;
+
+final class CommitLog implements Closeable {
+    private static final String EXTENSION = ".log";
+    private static final String PREFIX = "LSM-DB-GEN-";
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+    private static final byte UPSERT = 0;
+    private static final byte REMOVE = 1;
+    private static final byte REMOVE_RANGE = 2;
+    private static final byte BATCH = 3;
+    private static final int NO_UPPER_BOUND = -1;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final SyncPolicy policy;
+    private final Object syncLock = new Object();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private long written;
+    private volatile long synced;
+    private volatile IOException failure;
+
+    private CommitLog(@NotNull final Path file, @NotNull final SyncPolicy policy) throws IOException {
+        this(file, FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW), policy);
+    }
+
+    /** Журнал, пишущий в уже открытый канал channel файла file.
+     */
+    CommitLog(@NotNull final Path file, @NotNull final FileChannel channel, @NotNull final SyncPolicy policy) {
+        this.file = file;
+        this.policy = policy;
+        this.channel = channel;
+    }
+
+    @NotNull
+    static CommitLog create(@NotNull final Path path,
+                            final long generation,
+                            @NotNull final SyncPolicy policy) throws IOException {
+        return new CommitLog(path.resolve(PREFIX + generation + EXTENSION), policy);
+    }
+
+    @NotNull
+    static List<Path> findLogs(@NotNull final Path path) throws IOException {
+        final List<Path> logs = new ArrayList<>();
+        Files.walkFileTree(path, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(
+                    final Path file,
+                    final BasicFileAttributes attrs) {
+                final String name = file.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(EXTENSION)) {
+                    logs.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        logs.sort(Comparator.comparingLong(CommitLog::getGeneration));
+        return logs;
+    }
+
+    static long getGeneration(@NotNull final Path log) {
+        final String name = log.getFileName().toString();
+        return Long.parseLong(Iterables.get(Splitter.on(PREFIX).split(name), 1).replace(EXTENSION, ""));
+    }
+
+    /** Проигрывает записи журнала в таблицу.
+     * Чтение останавливается на первой недописанной или повреждённой записи.
+     */
+    static void replay(@NotNull final Path log, @NotNull final MemoryTable memTable) throws IOException {
+        final ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(log));
+        final CRC32 checksum = new CRC32();
+        while (data.remaining() >= HEADER_SIZE) {
+            final int length = data.getInt();
+            final int expected = data.getInt();
+            if (length <= 0 || length > data.remaining()) {
+                return;
+            }
+            final ByteBuffer body = data.slice().limit(length);
+            checksum.reset();
+            checksum.update(body.duplicate());
+            if ((int) checksum.getValue() != expected) {
+                return;
+            }
+            data.position(data.position() + length);
+
+            final byte op = body.get();
+            final long timestamp = body.getLong();
+            if (op == BATCH) {
+                replayBatch(body, timestamp, memTable);
+                continue;
+            }
+            final int keySize = body.getInt();
+            final ByteBuffer key = copy(body, keySize);
+            if (op == REMOVE_RANGE) {
+                final int toSize = body.getInt();
+                final ByteBuffer to = toSize == NO_UPPER_BOUND ? null : copy(body, toSize);
+                memTable.removeRange(new RangeTombstone(key, to, timestamp));
+            } else if (op == REMOVE) {
+                memTable.put(key, new Value(null, timestamp, true));
+            } else {
+                memTable.put(key, new Value(copy(body, body.remaining()), timestamp, false));
+            }
+        }
+    }
+
+    private static void replayBatch(@NotNull final ByteBuffer body,
+                                    final long timestamp,
+                                    @NotNull final MemoryTable memTable) {
+        final int count = body.getInt();
+        for (int i = 0; i < count; i++) {
+            final byte op = body.get();
+            final ByteBuffer key = copy(body, body.getInt());
+            if (op == REMOVE) {
+                memTable.put(key, new Value(null, timestamp, true));
+            } else {
+                memTable.put(key, new Value(copy(body, body.getInt()), timestamp, false));
+            }
+        }
+    }
+
+    private static ByteBuffer copy(@NotNull final ByteBuffer from, final int size) {
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        result.put(from.slice().limit(size)).flip();
+        from.position(from.position() + size);
+        return result;
+    }
+
+    void append(@NotNull final ByteBuffer key, @NotNull final Value value) throws IOException {
+        final long position;
+        synchronized (this) {
+            final ByteBuffer data = value.getData();
+            final int valueSize = value.isTombstone() || data == null ? 0 : data.remaining();
+            final int length = Byte.BYTES + Long.BYTES + Integer.BYTES + key.remaining() + valueSize;
+            startRecord(length);
+            buffer.put(value.isTombstone() ? REMOVE : UPSERT)
+                    .putLong(value.getTimestamp())
+                    .putInt(key.remaining())
+                    .put(key.duplicate());
+            if (valueSize > 0) {
+                buffer.put(data.duplicate());
+            }
+            position = writeRecord(length);
+        }
+        syncAfterAppend(position);
+    }
+
+    /** Пишет удаление диапазона: как удаление ключа from, за которым следуют длина и ключ конца
+     * или -1 для диапазона до конца ключей.
+     */
+    void appendRange(@NotNull final RangeTombstone tombstone) throws IOException {
+        final long position;
+        synchronized (this) {
+            final ByteBuffer from = tombstone.getFrom();
+            final ByteBuffer to = tombstone.getTo();
+            final int length = Byte.BYTES + Long.BYTES + Integer.BYTES + from.remaining()
+                    + Integer.BYTES + (to == null ? 0 : to.remaining());
+            startRecord(length);
+            buffer.put(REMOVE_RANGE)
+                    .putLong(tombstone.getTimestamp())
+                    .putInt(from.remaining())
+                    .put(from);
+            if (to == null) {
+                buffer.putInt(NO_UPPER_BOUND);
+            } else {
+                buffer.putInt(to.remaining()).put(to);
+            }
+            position = writeRecord(length);
+        }
+        syncAfterAppend(position);
+    }
+
+    /** Пишет пакет записей одной записью журнала, чтобы при проигрывании он применился целиком или никак:
+     * код пакета, общая метка времени и количество, затем у каждой записи код, длина и ключ,
+     * а у вставки ещё длина и значение.
+     * @param values - значения ключей с одной меткой времени
+     */
+    void appendBatch(@NotNull final List<ByteBuffer> keys, @NotNull final List<Value> values) throws IOException {
+        final long position;
+        synchronized (this) {
+            int length = Byte.BYTES + Long.BYTES + Integer.BYTES;
+            for (int i = 0; i < keys.size(); i++) {
+                length += Byte.BYTES + Integer.BYTES + keys.get(i).remaining();
+                if (!values.get(i).isTombstone()) {
+                    length += Integer.BYTES + values.get(i).getData().remaining();
+                }
+            }
+            startRecord(length);
+            buffer.put(BATCH)
+                    .putLong(values.get(0).getTimestamp())
+                    .putInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                final ByteBuffer key = keys.get(i);
+                final Value value = values.get(i);
+                buffer.put(value.isTombstone() ? REMOVE : UPSERT)
+                        .putInt(key.remaining())
+                        .put(key.duplicate());
+                if (!value.isTombstone()) {
+                    buffer.putInt(value.getData().remaining()).put(value.getData().duplicate());
+                }
+            }
+            position = writeRecord(length);
+        }
+        syncAfterAppend(position);
+    }
+
+    /** Готовит буфер к записи длиной length. После ошибки записи или сброса журнал новых записей
+     * не принимает: в файле может остаться недописанная запись, на которой остановится проигрывание,
+     * и всё записанное после неё потерялось бы.
+     */
+    private void startRecord(final int length) throws IOException {
+        final IOException error = failure;
+        if (error != null) {
+            throw new IOException("Commit log is not writable after failure", error);
+        }
+        if (buffer.capacity() < HEADER_SIZE + length) {
+            buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        }
+        buffer.clear().position(HEADER_SIZE);
+    }
+
+    /** Дописывает к телу записи в буфере длину и контрольную сумму и пишет её в файл.
+     * Буфер, выросший под большую запись, после неё заменяется исходным,
+     * чтобы один большой пакет не держал память всё время жизни журнала.
+     * @return позиция конца записи в журнале
+     */
+    private long writeRecord(final int length) throws IOException {
+        crc.reset();
+        crc.update(buffer.duplicate().flip().position(HEADER_SIZE));
+        buffer.putInt(0, length).putInt(Integer.BYTES, (int) crc.getValue()).flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+        if (buffer.capacity() > INITIAL_BUFFER_SIZE) {
+            buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        }
+        written += HEADER_SIZE + length;
+        return written;
+    }
+
+    private void syncAfterAppend(final long position) throws IOException {
+        if (policy.getMode() == SyncPolicy.Mode.WRITE
+                || policy.getMode() == SyncPolicy.Mode.BYTES && position - synced >= policy.getThreshold()) {
+            sync(position);
+        }
+    }
+
+    private void sync(final long position) throws IOException {
+        if (synced >= position) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (synced >= position) {
+                return;
+            }
+            final long target;
+            synchronized (this) {
+                target = written;
+            }
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                if (channel.isOpen()) {
+                    failure = e;
+                }
+                throw e;
+            }
+            synced = target;
+        }
+    }
+
+    void sync() throws IOException {
+        final long target;
+        synchronized (this) {
+            target = written;
+        }
+        sync(target);
+    }
+
+    void backgroundSync() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            sync();
+        } catch (IOException expected) {
+            // Ошибка запомнена в sync и вернётся следующей записи
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            sync();
+            channel.close();
+        }
+    }
+
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+}
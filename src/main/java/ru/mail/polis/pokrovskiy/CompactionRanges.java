@@ -0,0 +1,70 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/** Деление слияния таблиц на непересекающиеся диапазоны ключей, которые сливаются независимо.
+ * Границы выбираются из ключей индексов таблиц: каждый ключ представляет долю объёма своей таблицы,
+ * и диапазоны режутся так, чтобы на каждый пришёлся близкий объём.
+ */
+final class CompactionRanges {
+    private static final long MIN_RANGE_SIZE = 1024 * 1024;
+    private static final int SAMPLES_PER_RANGE = 16;
+
+    private CompactionRanges() {
+    }
+
+    /** Границы не больше чем parts диапазонов по возрастанию: диапазон i содержит ключи от границы i - 1
+     * включительно до границы i не включительно. Пустой список, если делить слияние не стоит.
+     * @param tables - сливаемые таблицы
+     * @param parts - наибольшее число диапазонов
+     */
+    @NotNull
+    static List<ByteBuffer> splitKeys(@NotNull final List<STable> tables, final int parts) throws IOException {
+        long total = 0;
+        for (final STable table : tables) {
+            total += table.sizeInBytes();
+        }
+        final int ranges = (int) Math.min(parts, total / MIN_RANGE_SIZE);
+        if (ranges < 2) {
+            return List.of();
+        }
+        final List<Sample> samples = new ArrayList<>();
+        for (final STable table : tables) {
+            final List<ByteBuffer> keys = table.splitKeys(ranges * SAMPLES_PER_RANGE);
+            final double weight = (double) table.sizeInBytes() / (keys.size() + 1);
+            for (final ByteBuffer key : keys) {
+                samples.add(new Sample(key, weight));
+            }
+        }
+        samples.sort(Comparator.comparing(sample -> sample.key));
+        final List<ByteBuffer> splits = new ArrayList<>();
+        double covered = 0;
+        for (final Sample sample : samples) {
+            if (splits.size() == ranges - 1) {
+                break;
+            }
+            covered += sample.weight;
+            if (covered >= (double) total * (splits.size() + 1) / ranges
+                    && (splits.isEmpty() || sample.key.compareTo(splits.get(splits.size() - 1)) > 0)) {
+                splits.add(sample.key);
+            }
+        }
+        return splits;
+    }
+
+    private static final class Sample {
+        private final ByteBuffer key;
+        private final double weight;
+
+        Sample(@NotNull final ByteBuffer key, final double weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package ru.mail.polis.pokrovskiy;
+
+/** Как {@link MyDAO#compact()} сливает таблицы на диске.
+ */
+public enum CompactionStyle {
+    /** Все таблицы сливаются в одну: чтение быстрее всего, но каждая компакция переписывает все данные. */
+    FULL,
+    /** Таблицы разложены по уровням с растущим в заданное число раз объёмом, внутри уровня
+     * от первого диапазоны ключей не пересекаются. Переполненный уровень сливает одну таблицу
+     * с пересекающимися таблицами следующего уровня, остальные данные не переписываются. */
+    LEVELED,
+    /** Подряд идущие по свежести таблицы близкого объёма сливаются в одну, когда их набирается
+     * {@link Config#withTierThreshold(int)}: данные переписываются реже, зато чтение проходит больше таблиц. */
+    SIZE_TIERED
+}
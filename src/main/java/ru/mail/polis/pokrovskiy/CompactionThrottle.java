@@ -0,0 +1,61 @@
+package ru.mail.polis.pokrovskiy;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/** Ограничение скорости чтения и записи компакции: общее ведро токенов на байты ключей и значений.
+ * Токены берутся порциями, чтобы не обращаться к ведру на каждую ячейку; остаток берётся в конце ячеек.
+ */
+final class CompactionThrottle {
+    private static final int CHUNK = 64 * 1024;
+
+    @Nullable
+    private final RateLimiter limiter;
+
+    /** Ограничение скорости.
+     * @param bytesPerSecond - байт в секунду, 0 снимает ограничение
+     */
+    CompactionThrottle(final long bytesPerSecond) {
+        this.limiter = bytesPerSecond == 0 ? null : RateLimiter.create(bytesPerSecond);
+    }
+
+    /** Ячейки из cells, выдаваемые не быстрее разрешённой скорости.
+     */
+    @NotNull
+    Iterator<Cell> throttle(@NotNull final Iterator<Cell> cells) {
+        if (limiter == null) {
+            return cells;
+        }
+        return new Iterator<>() {
+            private int taken;
+
+            @Override
+            public boolean hasNext() {
+                if (cells.hasNext()) {
+                    return true;
+                }
+                if (taken > 0) {
+                    limiter.acquire(taken);
+                    taken = 0;
+                }
+                return false;
+            }
+
+            @Override
+            public Cell next() {
+                final Cell cell = cells.next();
+                final ByteBuffer data = cell.getValue().getData();
+                taken += cell.getKey().remaining() + (data == null ? 0 : data.remaining());
+                if (taken >= CHUNK) {
+                    limiter.acquire(taken);
+                    taken = 0;
+                }
+                return cell;
+            }
+        };
+    }
+}
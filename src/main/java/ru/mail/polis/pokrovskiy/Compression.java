@@ -0,0 +1,30 @@
+package ru.mail.polis.pokrovskiy;
+
+import java.io.IOException;
+
+/** Сжатие блоков новых таблиц. Способ сжатия записан в каждом блоке, поэтому таблицы с разным сжатием читаются вместе.
+ */
+public enum Compression {
+    NONE((byte) 0),
+    DEFLATE((byte) 1),
+    LZ4((byte) 2);
+
+    private final byte codec;
+
+    Compression(final byte codec) {
+        this.codec = codec;
+    }
+
+    byte getCodec() {
+        return codec;
+    }
+
+    static Compression of(final byte codec) throws IOException {
+        for (final Compression compression : values()) {
+            if (compression.codec == codec) {
+                return compression;
+            }
+        }
+        throw new IOException("Unsupported block codec " + codec);
+    }
+}
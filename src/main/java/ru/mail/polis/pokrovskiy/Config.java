@@ -0,0 +1,376 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+
+public final class Config {
+    private static final long DEFAULT_SYNC_INTERVAL = 100;
+    private static final int DEFAULT_MAX_FLUSH_QUEUE = 2;
+    private static final int DEFAULT_BLOOM_BITS_PER_KEY = 10;
+    private static final int DEFAULT_INDEX_INTERVAL = 16;
+    private static final int DEFAULT_BLOCK_SIZE = 4096;
+    private static final int DEFAULT_RESTART_INTERVAL = 16;
+    private static final long DEFAULT_BLOCK_CACHE_SIZE = 8 * 1024 * 1024;
+    private static final long DEFAULT_LEVEL_BASE_SIZE = 10 * 1024 * 1024;
+    private static final int DEFAULT_LEVEL_MULTIPLIER = 10;
+    private static final long DEFAULT_TARGET_FILE_SIZE = 2 * 1024 * 1024;
+    private static final int DEFAULT_TIER_THRESHOLD = 4;
+    private static final long MAX_MMAP_SEGMENT_SIZE = 1L << 30;
+    private static final long MIN_MMAP_SEGMENT_SIZE = 4096;
+
+    private SyncPolicy syncPolicy = SyncPolicy.everyMillis(DEFAULT_SYNC_INTERVAL);
+    private int maxFlushQueue = DEFAULT_MAX_FLUSH_QUEUE;
+    private int bloomBitsPerKey = DEFAULT_BLOOM_BITS_PER_KEY;
+    private boolean mmap;
+    private long mmapSegmentSize = MAX_MMAP_SEGMENT_SIZE;
+    private int indexInterval = DEFAULT_INDEX_INTERVAL;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private int restartInterval = DEFAULT_RESTART_INTERVAL;
+    private Compression compression = Compression.NONE;
+    private long blockCacheSize = DEFAULT_BLOCK_CACHE_SIZE;
+    private CompactionStyle compactionStyle = CompactionStyle.FULL;
+    private long levelBaseSize = DEFAULT_LEVEL_BASE_SIZE;
+    private int levelMultiplier = DEFAULT_LEVEL_MULTIPLIER;
+    private long targetFileSize = DEFAULT_TARGET_FILE_SIZE;
+    private int tierThreshold = DEFAULT_TIER_THRESHOLD;
+    private int compactionTriggerTables;
+    private long compactionTriggerBytes;
+    private long compactionRateLimit;
+    private int compactionThreads = 1;
+
+    private Config() {
+    }
+
+    public static Config defaults() {
+        return new Config();
+    }
+
+    /** Политика сброса журнала упреждающей записи на диск.
+     * @param syncPolicy - политика
+     */
+    public Config withSyncPolicy(@NotNull final SyncPolicy syncPolicy) {
+        final Config config = copy();
+        config.syncPolicy = syncPolicy;
+        return config;
+    }
+
+    /** Сколько заполненных таблиц может ожидать сброса на диск, прежде чем запись будет приостановлена.
+     * @param maxFlushQueue - размер очереди
+     */
+    public Config withMaxFlushQueue(final int maxFlushQueue) {
+        if (maxFlushQueue <= 0) {
+            throw new IllegalArgumentException("Flush queue size must be positive: " + maxFlushQueue);
+        }
+        final Config config = copy();
+        config.maxFlushQueue = maxFlushQueue;
+        return config;
+    }
+
+    /** Размер Bloom-фильтра новых таблиц в битах на ключ, 0 отключает фильтр.
+     * @param bloomBitsPerKey - бит на ключ
+     */
+    public Config withBloomBitsPerKey(final int bloomBitsPerKey) {
+        if (bloomBitsPerKey < 0) {
+            throw new IllegalArgumentException("Bits per key must not be negative: " + bloomBitsPerKey);
+        }
+        final Config config = copy();
+        config.bloomBitsPerKey = bloomBitsPerKey;
+        return config;
+    }
+
+    /** Читать таблицы через отображение файлов в память.
+     * Внутри хранилища блоки читаются прямо из отображения, а ключи и значения копируются в кучу,
+     * прежде чем попасть к вызывающему, поэтому закрытие таблицы или её удаление компакцией их не портит.
+     * @param mmap - использовать ли отображение
+     */
+    public Config withMmap(final boolean mmap) {
+        final Config config = copy();
+        config.mmap = mmap;
+        return config;
+    }
+
+    /** Размер отдельно отображаемого куска файла таблицы: степень двойки от 4 КБ до 1 ГБ.
+     * Данные на границе кусков читаются копированием в кучу.
+     * @param mmapSegmentSize - размер куска в байтах
+     */
+    public Config withMmapSegmentSize(final long mmapSegmentSize) {
+        if (mmapSegmentSize < MIN_MMAP_SEGMENT_SIZE || mmapSegmentSize > MAX_MMAP_SEGMENT_SIZE
+                || Long.bitCount(mmapSegmentSize) != 1) {
+            throw new IllegalArgumentException("Segment size must be a power of two from "
+                    + MIN_MMAP_SEGMENT_SIZE + " to " + MAX_MMAP_SEGMENT_SIZE + ": " + mmapSegmentSize);
+        }
+        final Config config = copy();
+        config.mmapSegmentSize = mmapSegmentSize;
+        return config;
+    }
+
+    /** Каждый какой ключ таблицы старого формата держать в разреженном индексе в памяти.
+     * @param indexInterval - шаг выборки ключей
+     */
+    public Config withIndexInterval(final int indexInterval) {
+        if (indexInterval <= 0) {
+            throw new IllegalArgumentException("Index interval must be positive: " + indexInterval);
+        }
+        final Config config = copy();
+        config.indexInterval = indexInterval;
+        return config;
+    }
+
+    /** Размер блока новых таблиц в байтах до служебных данных блока.
+     * @param blockSize - размер блока
+     */
+    public Config withBlockSize(final int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+        }
+        final Config config = copy();
+        config.blockSize = blockSize;
+        return config;
+    }
+
+    /** Через сколько записей блока ключ хранится целиком, а не остатком после общего префикса.
+     * @param restartInterval - шаг точек рестарта
+     */
+    public Config withRestartInterval(final int restartInterval) {
+        if (restartInterval <= 0) {
+            throw new IllegalArgumentException("Restart interval must be positive: " + restartInterval);
+        }
+        final Config config = copy();
+        config.restartInterval = restartInterval;
+        return config;
+    }
+
+    /** Сжатие блоков новых таблиц.
+     * @param compression - способ сжатия
+     */
+    public Config withCompression(@NotNull final Compression compression) {
+        final Config config = copy();
+        config.compression = compression;
+        return config;
+    }
+
+    /** Объём общего для всех таблиц кэша блоков вне кучи в байтах, 0 отключает кэш.
+     * Память кэша выделяется по мере заполнения.
+     * @param blockCacheSize - объём кэша
+     */
+    public Config withBlockCacheSize(final long blockCacheSize) {
+        if (blockCacheSize < 0) {
+            throw new IllegalArgumentException("Block cache size must not be negative: " + blockCacheSize);
+        }
+        final Config config = copy();
+        config.blockCacheSize = blockCacheSize;
+        return config;
+    }
+
+    /** Способ компакции.
+     * @param compactionStyle - способ компакции
+     */
+    public Config withCompactionStyle(@NotNull final CompactionStyle compactionStyle) {
+        final Config config = copy();
+        config.compactionStyle = compactionStyle;
+        return config;
+    }
+
+    /** Объём первого уровня при уровневой компакции в байтах, каждый следующий уровень больше
+     * в {@link #withLevelMultiplier(int)} раз.
+     * @param levelBaseSize - объём первого уровня
+     */
+    public Config withLevelBaseSize(final long levelBaseSize) {
+        if (levelBaseSize <= 0) {
+            throw new IllegalArgumentException("Level size must be positive: " + levelBaseSize);
+        }
+        final Config config = copy();
+        config.levelBaseSize = levelBaseSize;
+        return config;
+    }
+
+    /** Во сколько раз каждый уровень больше предыдущего при уровневой компакции.
+     * @param levelMultiplier - множитель
+     */
+    public Config withLevelMultiplier(final int levelMultiplier) {
+        if (levelMultiplier < 2) {
+            throw new IllegalArgumentException("Level multiplier must be at least 2: " + levelMultiplier);
+        }
+        final Config config = copy();
+        config.levelMultiplier = levelMultiplier;
+        return config;
+    }
+
+    /** Объём ключей и значений, после которого компакция начинает следующий файл уровня.
+     * @param targetFileSize - объём данных одного файла
+     */
+    public Config withTargetFileSize(final long targetFileSize) {
+        if (targetFileSize <= 0) {
+            throw new IllegalArgumentException("Target file size must be positive: " + targetFileSize);
+        }
+        final Config config = copy();
+        config.targetFileSize = targetFileSize;
+        return config;
+    }
+
+    /** Сколько таблиц близкого объёма сливается в одну при компакции по размерам.
+     * @param tierThreshold - число таблиц
+     */
+    public Config withTierThreshold(final int tierThreshold) {
+        if (tierThreshold < 2) {
+            throw new IllegalArgumentException("Tier threshold must be at least 2: " + tierThreshold);
+        }
+        final Config config = copy();
+        config.tierThreshold = tierThreshold;
+        return config;
+    }
+
+    /** Сколько таблиц, сброшенных после прошлой компакции, запускают компакцию в фоне, 0 отключает запуск
+     * по числу таблиц.
+     * @param compactionTriggerTables - число таблиц
+     */
+    public Config withCompactionTriggerTables(final int compactionTriggerTables) {
+        if (compactionTriggerTables < 0) {
+            throw new IllegalArgumentException("Table count must not be negative: " + compactionTriggerTables);
+        }
+        final Config config = copy();
+        config.compactionTriggerTables = compactionTriggerTables;
+        return config;
+    }
+
+    /** Сколько байт таблиц, сброшенных после прошлой компакции, запускают компакцию в фоне, 0 отключает запуск
+     * по объёму.
+     * @param compactionTriggerBytes - объём таблиц
+     */
+    public Config withCompactionTriggerBytes(final long compactionTriggerBytes) {
+        if (compactionTriggerBytes < 0) {
+            throw new IllegalArgumentException("Table size must not be negative: " + compactionTriggerBytes);
+        }
+        final Config config = copy();
+        config.compactionTriggerBytes = compactionTriggerBytes;
+        return config;
+    }
+
+    /** Сколько байт ключей и значений в секунду компакция может прочитать и записать вместе,
+     * 0 снимает ограничение.
+     * @param compactionRateLimit - байт в секунду
+     */
+    public Config withCompactionRateLimit(final long compactionRateLimit) {
+        if (compactionRateLimit < 0) {
+            throw new IllegalArgumentException("Rate limit must not be negative: " + compactionRateLimit);
+        }
+        final Config config = copy();
+        config.compactionRateLimit = compactionRateLimit;
+        return config;
+    }
+
+    /** Сколько потоков сливают таблицы при компакции. Большое слияние делится по ключам индексов
+     * на столько же диапазонов, каждый из которых пишется в свою таблицу.
+     * @param compactionThreads - число потоков
+     */
+    public Config withCompactionThreads(final int compactionThreads) {
+        if (compactionThreads <= 0) {
+            throw new IllegalArgumentException("Thread count must be positive: " + compactionThreads);
+        }
+        final Config config = copy();
+        config.compactionThreads = compactionThreads;
+        return config;
+    }
+
+    @NotNull
+    SyncPolicy getSyncPolicy() {
+        return syncPolicy;
+    }
+
+    int getMaxFlushQueue() {
+        return maxFlushQueue;
+    }
+
+    int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    boolean isMmap() {
+        return mmap;
+    }
+
+    long getMmapSegmentSize() {
+        return mmapSegmentSize;
+    }
+
+    int getIndexInterval() {
+        return indexInterval;
+    }
+
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    int getRestartInterval() {
+        return restartInterval;
+    }
+
+    @NotNull
+    Compression getCompression() {
+        return compression;
+    }
+
+    long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    @NotNull
+    CompactionStyle getCompactionStyle() {
+        return compactionStyle;
+    }
+
+    long getLevelBaseSize() {
+        return levelBaseSize;
+    }
+
+    int getLevelMultiplier() {
+        return levelMultiplier;
+    }
+
+    long getTargetFileSize() {
+        return targetFileSize;
+    }
+
+    int getTierThreshold() {
+        return tierThreshold;
+    }
+
+    int getCompactionTriggerTables() {
+        return compactionTriggerTables;
+    }
+
+    long getCompactionTriggerBytes() {
+        return compactionTriggerBytes;
+    }
+
+    long getCompactionRateLimit() {
+        return compactionRateLimit;
+    }
+
+    int getCompactionThreads() {
+        return compactionThreads;
+    }
+
+    private Config copy() {
+        final Config config = new Config();
+        config.syncPolicy = syncPolicy;
+        config.maxFlushQueue = maxFlushQueue;
+        config.bloomBitsPerKey = bloomBitsPerKey;
+        config.mmap = mmap;
+        config.mmapSegmentSize = mmapSegmentSize;
+        config.indexInterval = indexInterval;
+        config.blockSize = blockSize;
+        config.restartInterval = restartInterval;
+        config.compression = compression;
+        config.blockCacheSize = blockCacheSize;
+        config.compactionStyle = compactionStyle;
+        config.levelBaseSize = levelBaseSize;
+        config.levelMultiplier = levelMultiplier;
+        config.targetFileSize = targetFileSize;
+        config.tierThreshold = tierThreshold;
+        config.compactionTriggerTables = compactionTriggerTables;
+        config.compactionTriggerBytes = compactionTriggerBytes;
+        config.compactionRateLimit = compactionRateLimit;
+        config.compactionThreads = compactionThreads;
+        return config;
+    }
+}
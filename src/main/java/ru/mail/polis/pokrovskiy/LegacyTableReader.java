@@ -0,0 +1,158 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/** Таблица формата 1: записи с длинами по 8 байт, за ними массив смещений и количество записей.
+ */
+final class LegacyTableReader implements TableReader {
+    private final TableFile data;
+    private final long generation;
+    private final int rowCount;
+    private final LongBuffer offsets;
+    private final SparseIndex index;
+
+    LegacyTableReader(@NotNull final TableFile data,
+                      final long dataEnd,
+                      @Nullable final SparseIndex index,
+                      final long generation,
+                      @NotNull final Config config) throws IOException {
+        this.data = data;
+        this.generation = generation;
+        this.rowCount = data.readInt(dataEnd - Integer.BYTES);
+        final long offsetsStart = dataEnd - Integer.BYTES - Long.BYTES * (long) rowCount;
+        this.offsets = data.read(offsetsStart, Long.BYTES * rowCount).asLongBuffer();
+        if (index == null) {
+            final SparseIndex.Builder builder = new SparseIndex.Builder(config.getIndexInterval());
+            for (int i = 0; i < rowCount; i += builder.getInterval()) {
+                builder.add(getKey(i));
+            }
+            this.index = builder.build();
+        } else {
+            this.index = index;
+        }
+    }
+
+    @Override
+    public long indexSizeInBytes() {
+        return index.sizeInBytes() + (offsets.isDirect() ? 0 : (long) Long.BYTES * rowCount);
+    }
+
+    @NotNull
+    @Override
+    public List<ByteBuffer> splitKeys(final int count) {
+        final int parts = Math.min(count + 1, index.size());
+        final List<ByteBuffer> keys = new ArrayList<>();
+        for (int part = 1; part < parts; part++) {
+            keys.add(index.key((int) ((long) part * index.size() / parts)));
+        }
+        return keys;
+    }
+
+    @Nullable
+    @Override
+    public Cell get(@NotNull final ByteBuffer key) throws IOException {
+        final int position = findIndex(key);
+        if (position >= rowCount) {
+            return null;
+        }
+        final Cell cell = getCell(position);
+        return cell.getKey().equals(key) ? cell : null;
+    }
+
+    @NotNull
+    private ByteBuffer getKey(final int index) throws IOException {
+        final long offset = getOffset(index);
+        final long keySize = data.readLong(offset);
+        return data.read(offset + Long.BYTES, (int) keySize);
+    }
+
+    @NotNull
+    private Cell getCell(final int index) throws IOException {
+        long offset = getOffset(index);
+        final int keySize = (int) data.readLong(offset);
+        offset += Long.BYTES;
+
+        final ByteBuffer header = data.read(offset, keySize + Long.BYTES + Byte.BYTES);
+        final ByteBuffer key = header.duplicate().limit(keySize).slice();
+        final long timeStamp = header.getLong(keySize);
+        final boolean tombstone = header.get(keySize + Long.BYTES) != 0;
+        offset += keySize + Long.BYTES + Byte.BYTES;
+
+        if (tombstone) {
+            return new Cell(key, new Value(null, timeStamp, true), generation);
+        }
+        final long valueSize = data.readLong(offset);
+        final ByteBuffer value = data.read(offset + Long.BYTES, (int) valueSize);
+        return new Cell(key, new Value(value, timeStamp, false), generation);
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        final int end = to == null ? rowCount : findIndex(to);
+        return new Iterator<>() {
+            private int position = findIndex(from);
+
+            @Override
+            public boolean hasNext() {
+                return position < end;
+            }
+
+            @Override
+            public Cell next() {
+                try {
+                    return getCell(position++);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+
+    private long getOffset(final int index) {
+        return offsets.get(index);
+    }
+
+    private int findIndex(final ByteBuffer from) throws IOException {
+        if (index.isEmpty()) {
+            return findIndex(from, 0, rowCount - 1);
+        }
+        final int block = index.floor(from);
+        if (block < 0) {
+            return 0;
+        }
+        final int left = block * index.getInterval();
+        return findIndex(from, left, Math.min(left + index.getInterval(), rowCount) - 1);
+    }
+
+    private int findIndex(final ByteBuffer from, final int left, final int right) throws IOException {
+        int curLeft = left;
+        int curRight = right;
+
+        while (curLeft <= curRight) {
+            final int mid = (curLeft + curRight) / 2;
+
+            final ByteBuffer midKey = getKey(mid);
+
+            final int compare = midKey.compareTo(from);
+
+            if (compare < 0) {
+                curLeft = mid + 1;
+            } else if (compare > 0) {
+                curRight = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return curLeft;
+    }
+}
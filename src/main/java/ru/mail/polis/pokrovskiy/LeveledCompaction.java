@@ -0,0 +1,185 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** Выбор таблиц для уровневой компакции.
+ * Нулевой уровень состоит из сброшенных таблиц с пересекающимися диапазонами и целиком сливается в первый.
+ * Уровень от первого, превысивший свой объём, отдаёт одну таблицу, которая сливается с пересекающимися
+ * таблицами следующего уровня; таблицы уровня выбираются по кругу по возрастанию ключей.
+ */
+final class LeveledCompaction {
+    static final int MAX_LEVELS = 7;
+    private static final Comparator<STable> BY_MIN_KEY = (left, right) -> compareMin(left.getMinKey(),
+            right.getMinKey());
+
+    private final Config config;
+    private final ByteBuffer[] pointers = new ByteBuffer[MAX_LEVELS];
+
+    LeveledCompaction(@NotNull final Config config) {
+        this.config = config;
+    }
+
+    /** Следующая компакция или null, если нулевой уровень пуст, а остальные укладываются в свой объём.
+     */
+    @Nullable
+    Plan pick(@NotNull final List<STable> tables) {
+        final List<List<STable>> levels = new ArrayList<>();
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            levels.add(new ArrayList<>());
+        }
+        for (final STable table : tables) {
+            levels.get(Math.min(table.getLevel(), MAX_LEVELS - 1)).add(table);
+        }
+        for (final List<STable> level : levels) {
+            level.sort(BY_MIN_KEY);
+        }
+        if (!levels.get(0).isEmpty()) {
+            return plan(levels, 0, levels.get(0));
+        }
+        int worst = -1;
+        double worstScore = 1;
+        for (int level = 1; level < MAX_LEVELS - 1; level++) {
+            long size = 0;
+            for (final STable table : levels.get(level)) {
+                size += table.sizeInBytes();
+            }
+            final double score = size / maxBytes(level);
+            if (score > worstScore) {
+                worst = level;
+                worstScore = score;
+            }
+        }
+        if (worst < 0) {
+            return null;
+        }
+        final STable next = next(levels.get(worst), pointers[worst]);
+        pointers[worst] = next.getMaxKey();
+        return plan(levels, worst, List.of(next));
+    }
+
+    private double maxBytes(final int level) {
+        return config.getLevelBaseSize() * Math.pow(config.getLevelMultiplier(), level - 1);
+    }
+
+    @NotNull
+    private static STable next(@NotNull final List<STable> level, @Nullable final ByteBuffer pointer) {
+        if (pointer != null) {
+            for (final STable table : level) {
+                final ByteBuffer min = table.getMinKey();
+                if (min != null && min.compareTo(pointer) > 0) {
+                    return table;
+                }
+            }
+        }
+        return level.get(0);
+    }
+
+    @NotNull
+    private static Plan plan(@NotNull final List<List<STable>> levels,
+                             final int level,
+                             @NotNull final List<STable> upper) {
+        ByteBuffer from = upper.get(0).getMinKey();
+        ByteBuffer to = upper.get(0).getMaxKey();
+        for (final STable table : upper) {
+            from = from == null || table.getMinKey() == null ? null : min(from, table.getMinKey());
+            to = to == null || table.getMaxKey() == null ? null : max(to, table.getMaxKey());
+        }
+        final List<STable> lower = new ArrayList<>();
+        for (final STable table : levels.get(level + 1)) {
+            if (overlaps(table, from, to)) {
+                lower.add(table);
+            }
+        }
+        return new Plan(upper, lower, level + 1);
+    }
+
+    private static boolean overlaps(@NotNull final STable table,
+                                    @Nullable final ByteBuffer from,
+                                    @Nullable final ByteBuffer to) {
+        final ByteBuffer min = table.getMinKey();
+        final ByteBuffer max = table.getMaxKey();
+        return (to == null || min == null || min.compareTo(to) <= 0)
+                && (from == null || max == null || max.compareTo(from) >= 0);
+    }
+
+    private static int compareMin(@Nullable final ByteBuffer left, @Nullable final ByteBuffer right) {
+        if (left == null || right == null) {
+            return Boolean.compare(left != null, right != null);
+        }
+        return left.compareTo(right);
+    }
+
+    @NotNull
+    private static ByteBuffer min(@NotNull final ByteBuffer left, @NotNull final ByteBuffer right) {
+        return left.compareTo(right) <= 0 ? left : right;
+    }
+
+    @NotNull
+    private static ByteBuffer max(@NotNull final ByteBuffer left, @NotNull final ByteBuffer right) {
+        return left.compareTo(right) >= 0 ? left : right;
+    }
+
+    /** Ячейки из cells, пока их ключи и значения не займут bytes байт: граница очередного файла уровня.
+     * Файл заканчивается только между разными ключами, поэтому диапазоны соседних файлов не пересекаются.
+     */
+    @NotNull
+    static Iterator<Cell> limit(@NotNull final Iterator<Cell> cells, final long bytes) {
+        return new Iterator<>() {
+            private long taken;
+
+            @Override
+            public boolean hasNext() {
+                return taken < bytes && cells.hasNext();
+            }
+
+            @Override
+            public Cell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Cell cell = cells.next();
+                final ByteBuffer data = cell.getValue().getData();
+                taken += cell.getKey().remaining() + (data == null ? 0 : data.remaining());
+                return cell;
+            }
+        };
+    }
+
+    /** Таблицы одной компакции: верхние с исходного уровня и пересекающиеся с ними таблицы уровня результата.
+     */
+    static final class Plan {
+        private final List<STable> upper;
+        private final List<STable> lower;
+        private final int level;
+
+        Plan(@NotNull final List<STable> upper, @NotNull final List<STable> lower, final int level) {
+            this.upper = upper;
+            this.lower = lower;
+            this.level = level;
+        }
+
+        @NotNull
+        List<STable> getUpper() {
+            return upper;
+        }
+
+        @NotNull
+        List<STable> getLower() {
+            return lower;
+        }
+
+        /** Уровень, на который попадёт результат.
+         */
+        int getLevel() {
+            return level;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/** Сжатие в блочном формате LZ4: последовательности из литералов и ссылки на повтор не дальше 64 КБ назад.
+ */
+final class Lz4 {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_LOG = 14;
+    private static final int RUN_MASK = 0x0F;
+    private static final int TOKEN_SHIFT = 4;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int HASH_MULTIPLIER = -1_640_531_535;
+
+    private Lz4() {
+    }
+
+    static int maxCompressedLength(final int length) {
+        return length + length / BYTE_MASK + 16;
+    }
+
+    /** Сжимает length байт src в dst начиная с dstOffset и возвращает размер результата.
+     * @param src - исходные данные
+     * @param length - сколько байт сжимать
+     * @param dst - буфер, в котором после dstOffset не меньше {@link #maxCompressedLength(int)} байт
+     * @param dstOffset - начало результата в dst
+     * @param table - хеш-таблица на 2^14 позиций, её содержимое перезаписывается
+     */
+    static int compress(@NotNull final byte[] src,
+                        final int length,
+                        @NotNull final byte[] dst,
+                        final int dstOffset,
+                        @NotNull final int[] table) {
+        Arrays.fill(table, -1);
+        final int limit = length - MF_LIMIT;
+        final int matchLimit = length - LAST_LITERALS;
+        int anchor = 0;
+        int position = 0;
+        int out = dstOffset;
+        while (position < limit) {
+            final int sequence = readInt(src, position);
+            final int hash = (sequence * HASH_MULTIPLIER) >>> (Integer.SIZE - HASH_LOG);
+            final int candidate = table[hash];
+            table[hash] = position;
+            if (candidate < 0 || position - candidate > MAX_OFFSET || readInt(src, candidate) != sequence) {
+                position++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (position + matchLength < matchLimit && src[candidate + matchLength] == src[position + matchLength]) {
+                matchLength++;
+            }
+            final int token = out;
+            out = writeSequence(src, anchor, position - anchor, dst, out);
+            dst[out++] = (byte) (position - candidate);
+            dst[out++] = (byte) ((position - candidate) >>> Byte.SIZE);
+            final int extra = matchLength - MIN_MATCH;
+            if (extra >= RUN_MASK) {
+                dst[token] |= RUN_MASK;
+                out = writeLength(dst, out, extra - RUN_MASK);
+            } else {
+                dst[token] |= (byte) extra;
+            }
+            position += matchLength;
+            anchor = position;
+        }
+        return writeSequence(src, anchor, length - anchor, dst, out) - dstOffset;
+    }
+
+    /** Распаковывает srcLength байт src начиная с srcOffset ровно в dst.length байт.
+     */
+    static void decompress(@NotNull final byte[] src,
+                           final int srcOffset,
+                           final int srcLength,
+                           @NotNull final byte[] dst) {
+        final int end = srcOffset + srcLength;
+        int position = srcOffset;
+        int out = 0;
+        while (true) {
+            final int token = src[position++] & BYTE_MASK;
+            int literals = token >>> TOKEN_SHIFT;
+            if (literals == RUN_MASK) {
+                int next;
+                do {
+                    next = src[position++] & BYTE_MASK;
+                    literals += next;
+                } while (next == BYTE_MASK);
+            }
+            System.arraycopy(src, position, dst, out, literals);
+            position += literals;
+            out += literals;
+            if (position >= end) {
+                break;
+            }
+            final int offset = (src[position] & BYTE_MASK) | (src[position + 1] & BYTE_MASK) << Byte.SIZE;
+            position += 2;
+            int matchLength = token & RUN_MASK;
+            if (matchLength == RUN_MASK) {
+                int next;
+                do {
+                    next = src[position++] & BYTE_MASK;
+                    matchLength += next;
+                } while (next == BYTE_MASK);
+            }
+            matchLength += MIN_MATCH;
+            int reference = out - offset;
+            if (offset == 0 || reference < 0) {
+                throw new IllegalArgumentException("Malformed LZ4 offset " + offset + " at " + out);
+            }
+            for (int i = 0; i < matchLength; i++) {
+                dst[out++] = dst[reference++];
+            }
+        }
+        if (out != dst.length) {
+            throw new IllegalArgumentException("LZ4 block decompressed to " + out + " bytes, expected " + dst.length);
+        }
+    }
+
+    private static int writeSequence(@NotNull final byte[] src,
+                                     final int from,
+                                     final int literals,
+                                     @NotNull final byte[] dst,
+                                     final int position) {
+        int out = position;
+        final int token = out++;
+        if (literals >= RUN_MASK) {
+            dst[token] = (byte) (RUN_MASK << TOKEN_SHIFT);
+            out = writeLength(dst, out, literals - RUN_MASK);
+        } else {
+            dst[token] = (byte) (literals << TOKEN_SHIFT);
+        }
+        System.arraycopy(src, from, dst, out, literals);
+        return out + literals;
+    }
+
+    private static int writeLength(@NotNull final byte[] dst, final int position, final int length) {
+        int out = position;
+        int rest = length;
+        while (rest >= BYTE_MASK) {
+            dst[out++] = (byte) BYTE_MASK;
+            rest -= BYTE_MASK;
+        }
+        dst[out++] = (byte) rest;
+        return out;
+    }
+
+    private static int readInt(@NotNull final byte[] src, final int position) {
+        return (src[position] & BYTE_MASK)
+                | (src[position + 1] & BYTE_MASK) << Byte.SIZE
+                | (src[position + 2] & BYTE_MASK) << (2 * Byte.SIZE)
+                | (src[position + 3] & BYTE_MASK) << (3 * Byte.SIZE);
+    }
+}
@@ -0,0 +1,235 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/** Журнал изменений набора таблиц на диске. Каждая запись — одно изменение: последнее выданное поколение,
+ * поколения ушедших из набора таблиц и описания пришедших. Сброс добавляет таблицу, компакция одной записью
+ * заменяет слитые таблицы результатом, поэтому после падения набор таблиц либо прежний, либо новый целиком.
+ * Записи обрамлены длиной и контрольной суммой, как в журнале записей; недописанная запись в конце
+ * отбрасывается. При открытии хранилища и при разрастании журнал переписывается одной записью с текущим набором.
+ */
+final class Manifest implements Closeable {
+    private static final String NAME = "MANIFEST";
+    private static final String TEMP_NAME = "MANIFEST.tmp";
+    private static final int HEADER_SIZE = Integer.BYTES * 2;
+    private static final long REWRITE_SIZE = 4L * 1024 * 1024;
+
+    private final Path path;
+    private final Map<Long, ByteBuffer> tables = new TreeMap<>();
+    private final boolean found;
+    private long lastGeneration;
+    @Nullable
+    private FileChannel channel;
+    private long written;
+    private IOException failure;
+
+    /** Читает манифест каталога path, если он есть.
+     */
+    Manifest(@NotNull final Path path) throws IOException {
+        this.path = path;
+        Files.deleteIfExists(path.resolve(TEMP_NAME));
+        final Path file = path.resolve(NAME);
+        this.found = Files.exists(file);
+        if (found) {
+            replay(ByteBuffer.wrap(Files.readAllBytes(file)));
+        }
+    }
+
+    /** Применяет записи журнала. Повреждённая запись, за которой ещё есть записи, не может быть
+     * недописанной: изменения после неё потерялись бы, а их таблицы удалились бы как лишние.
+     */
+    private void replay(@NotNull final ByteBuffer data) throws IOException {
+        final CRC32 checksum = new CRC32();
+        while (data.remaining() >= HEADER_SIZE) {
+            final int length = data.getInt();
+            final int expected = data.getInt();
+            if (length <= 0 || length > data.remaining()) {
+                return;
+            }
+            final ByteBuffer body = data.slice().limit(length);
+            checksum.reset();
+            checksum.update(body.duplicate());
+            data.position(data.position() + length);
+            if ((int) checksum.getValue() != expected) {
+                if (data.hasRemaining()) {
+                    throw new IOException("Damaged record in " + path.resolve(NAME));
+                }
+                return;
+            }
+            apply(body);
+        }
+    }
+
+    private void apply(@NotNull final ByteBuffer body) {
+        lastGeneration = Math.max(lastGeneration, body.getLong());
+        final int removed = body.getInt();
+        for (int i = 0; i < removed; i++) {
+            tables.remove(body.getLong());
+        }
+        final int added = body.getInt();
+        for (int i = 0; i < added; i++) {
+            final int size = body.getInt();
+            final ByteBuffer description = ByteBuffer.allocate(size).put(body.slice().limit(size)).flip();
+            body.position(body.position() + size);
+            tables.put(STable.describedGeneration(description), description);
+        }
+    }
+
+    /** Был ли манифест в каталоге; без него таблицы ищутся по файлам, как до появления манифеста.
+     */
+    boolean isFound() {
+        return found;
+    }
+
+    /** Описания таблиц набора по возрастанию поколений.
+     */
+    @NotNull
+    synchronized List<ByteBuffer> getTables() {
+        final List<ByteBuffer> result = new ArrayList<>(tables.size());
+        for (final ByteBuffer description : tables.values()) {
+            result.add(description.duplicate());
+        }
+        return result;
+    }
+
+    /** Наибольшее поколение, выданное к последнему изменению.
+     */
+    synchronized long getLastGeneration() {
+        return lastGeneration;
+    }
+
+    /** Заменяет содержимое манифеста набором live.
+     * @param generation - последнее выданное поколение
+     */
+    synchronized void rewrite(@NotNull final Collection<STable> live, final long generation) throws IOException {
+        tables.clear();
+        for (final STable table : live) {
+            tables.put(table.getGeneration(), table.describe());
+        }
+        lastGeneration = Math.max(lastGeneration, generation);
+        rewrite();
+    }
+
+    /** Записывает изменение набора таблиц; по возвращении оно переживёт падение.
+     * После ошибки записи манифест больше не принимает изменений: недописанная запись должна остаться последней.
+     * @param removed - таблицы, ушедшие из набора
+     * @param added - таблицы, пришедшие в набор
+     * @param generation - последнее выданное поколение
+     */
+    synchronized void apply(@NotNull final Collection<STable> removed,
+                            @NotNull final Collection<STable> added,
+                            final long generation) throws IOException {
+        if (failure != null) {
+            throw new IOException("Manifest is not writable after failure", failure);
+        }
+        final List<Long> generations = new ArrayList<>(removed.size());
+        for (final STable table : removed) {
+            generations.add(table.getGeneration());
+        }
+        final List<ByteBuffer> descriptions = new ArrayList<>(added.size());
+        for (final STable table : added) {
+            descriptions.add(table.describe());
+        }
+        final ByteBuffer record = record(generation, generations, descriptions);
+        try {
+            syncDirectory();
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(false);
+            written += record.limit();
+            lastGeneration = Math.max(lastGeneration, generation);
+            tables.keySet().removeAll(generations);
+            for (final ByteBuffer description : descriptions) {
+                tables.put(STable.describedGeneration(description), description);
+            }
+            if (written > REWRITE_SIZE) {
+                rewrite();
+            }
+        } catch (IOException e) {
+            failure = e;
+            throw e;
+        }
+    }
+
+    /** Пишет текущий набор во временный файл и переименовывает его в манифест:
+     * при падении на диске остаётся прежний или новый манифест целиком.
+     */
+    private void rewrite() throws IOException {
+        final ByteBuffer record = record(lastGeneration, List.of(), tables.values());
+        final Path temp = path.resolve(TEMP_NAME);
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            while (record.hasRemaining()) {
+                out.write(record);
+            }
+            out.force(false);
+        }
+        close();
+        final Path file = path.resolve(NAME);
+        Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        written = record.limit();
+    }
+
+    /** Запись изменения: последнее поколение, количество и поколения ушедших таблиц,
+     * количество и описания пришедших, каждое со своей длиной.
+     */
+    @NotNull
+    private static ByteBuffer record(final long generation,
+                                     @NotNull final Collection<Long> removed,
+                                     @NotNull final Collection<ByteBuffer> added) {
+        int length = Long.BYTES + Integer.BYTES + Long.BYTES * removed.size() + Integer.BYTES;
+        for (final ByteBuffer description : added) {
+            length += Integer.BYTES + description.remaining();
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + length);
+        buffer.position(HEADER_SIZE);
+        buffer.putLong(generation).putInt(removed.size());
+        for (final long table : removed) {
+            buffer.putLong(table);
+        }
+        buffer.putInt(added.size());
+        for (final ByteBuffer description : added) {
+            buffer.putInt(description.remaining()).put(description.duplicate());
+        }
+        final CRC32 checksum = new CRC32();
+        checksum.update(buffer.duplicate().flip().position(HEADER_SIZE));
+        return buffer.putInt(0, length).putInt(Integer.BYTES, (int) checksum.getValue()).flip();
+    }
+
+    /** Делает надёжными записи каталога: новые файлы таблиц и переименование манифеста.
+     * Не все системы дают открыть каталог, там остаётся полагаться на файловую систему.
+     */
+    private void syncDirectory() {
+        try (FileChannel directory = FileChannel.open(path, StandardOpenOption.READ)) {
+            directory.force(true);
+        } catch (IOException expected) {
+            // Каталог не открывается как файл, например в Windows
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+final class MappedTableFile implements TableFile {
+    private static final Unmapper UNMAPPER = Unmapper.create();
+
+    private final MappedByteBuffer[] segments;
+    private final long size;
+    private final int segmentShift;
+    private final long segmentMask;
+    private volatile boolean closed;
+
+    private MappedTableFile(@NotNull final MappedByteBuffer[] segments, final long size, final int segmentShift) {
+        this.segments = segments;
+        this.size = size;
+        this.segmentShift = segmentShift;
+        this.segmentMask = (1L << segmentShift) - 1;
+    }
+
+    /** Отображает файл кусками по segmentSize байт.
+     * @param segmentSize - степень двойки не больше 1 ГБ
+     */
+    @NotNull
+    static MappedTableFile open(@NotNull final Path file, final long segmentSize) throws IOException {
+        final int shift = Long.numberOfTrailingZeros(segmentSize);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final int count = (int) ((size + segmentSize - 1) >>> shift);
+            final MappedByteBuffer[] segments = new MappedByteBuffer[count];
+            for (int i = 0; i < segments.length; i++) {
+                final long start = (long) i << shift;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, size - start));
+            }
+            return new MappedTableFile(segments, size, shift);
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public boolean isMapped() {
+        return true;
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer read(final long offset, final int length) throws IOException {
+        if (closed) {
+            throw new IOException("Table is closed");
+        }
+        final MappedByteBuffer segment = segments[(int) (offset >>> segmentShift)];
+        final int position = (int) (offset & segmentMask);
+        if (position + length <= segment.limit()) {
+            return segment.duplicate().position(position).limit(position + length).slice();
+        }
+        final ByteBuffer result = ByteBuffer.allocate(length);
+        long current = offset;
+        while (result.hasRemaining()) {
+            final MappedByteBuffer part = segments[(int) (current >>> segmentShift)];
+            final int from = (int) (current & segmentMask);
+            final int count = Math.min(result.remaining(), part.limit() - from);
+            result.put(part.duplicate().position(from).limit(from + count));
+            current += count;
+        }
+        return result.flip();
+    }
+
+    @Override
+    public long readLong(final long offset) throws IOException {
+        final int position = (int) (offset & segmentMask);
+        if (!closed && position + Long.BYTES <= segments[(int) (offset >>> segmentShift)].limit()) {
+            return segments[(int) (offset >>> segmentShift)].getLong(position);
+        }
+        return read(offset, Long.BYTES).getLong();
+    }
+
+    @Override
+    public int readInt(final long offset) throws IOException {
+        final int position = (int) (offset & segmentMask);
+        if (!closed && position + Integer.BYTES <= segments[(int) (offset >>> segmentShift)].limit()) {
+            return segments[(int) (offset >>> segmentShift)].getInt(position);
+        }
+        return read(offset, Integer.BYTES).getInt();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (final MappedByteBuffer segment : segments) {
+            UNMAPPER.unmap(segment);
+        }
+    }
+
+    private static final class Unmapper {
+        private final Object unsafe;
+        private final Method invokeCleaner;
+
+        private Unmapper(final Object unsafe, final Method invokeCleaner) {
+            this.unsafe = unsafe;
+            this.invokeCleaner = invokeCleaner;
+        }
+
+        @NotNull
+        static Unmapper create() {
+            try {
+                final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                return new Unmapper(field.get(null), unsafeClass.getMethod("invokeCleaner", ByteBuffer.class));
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                return new Unmapper(null, null);
+            }
+        }
+
+        void unmap(@NotNull final MappedByteBuffer buffer) {
+            if (unsafe == null) {
+                return;
+            }
+            try {
+                invokeCleaner.invoke(unsafe, buffer);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                // The mapping is released by GC when the buffer becomes unreachable
+            }
+        }
+    }
+}
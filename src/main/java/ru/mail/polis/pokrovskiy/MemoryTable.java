@@ -1,52 +1,116 @@
 package ru.mail.polis.pokrovskiy;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 class MemoryTable {
-    private final SortedMap<ByteBuffer, Value> map;
-    private long sizeInBytes;
+    private static final long ENTRY_OVERHEAD = 160;
+    private final ConcurrentNavigableMap<ByteBuffer, Value> map;
+    private final List<RangeTombstone> rangeTombstones = new CopyOnWriteArrayList<>();
+    private final AtomicLong sizeInBytes = new AtomicLong();
     private final long generation;
 
     MemoryTable(final long generation) {
-        this.map = new TreeMap<>();
+        this.map = new ConcurrentSkipListMap<>();
         this.generation = generation;
     }
 
     @NotNull
     Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
-        return map.tailMap(from).entrySet()
+        return iterator(from, null, Long.MAX_VALUE);
+    }
+
+    /** Ячейки с ключами от from включительно до to не включительно в версиях, видимых снимку sequence.
+     * @param to - граница ключей не включительно, null без границы
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to, final long sequence) {
+        if (to != null && from.compareTo(to) >= 0) {
+            return Collections.emptyIterator();
+        }
+        final Map<ByteBuffer, Value> range = to == null ? map.tailMap(from) : map.subMap(from, to);
+        return range.entrySet()
                 .stream()
-                .map(o -> Cell.of(o.getKey(), o.getValue(), getGeneration())).iterator();
+                .map(o -> {
+                    final Value value = o.getValue().visibleAt(sequence);
+                    return value == null ? null : Cell.of(o.getKey(), value, getGeneration());
+                })
+                .filter(Objects::nonNull)
+                .iterator();
+    }
+
+    @Nullable
+    Value get(@NotNull final ByteBuffer key) {
+        return map.get(key);
     }
 
-    void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value val = new Value(value, false);
-        final Value oldValue = map.put(key, val);
+    /** Версия ключа, видимая снимку sequence, или null.
+     */
+    @Nullable
+    Value get(@NotNull final ByteBuffer key, final long sequence) {
+        final Value value = map.get(key);
+        return value == null ? null : value.visibleAt(sequence);
+    }
+
+    void put(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        put(key, value, Long.MAX_VALUE);
+    }
+
+    /** Записи одного ключа должны приходить последовательно, разные ключи можно писать из разных потоков.
+     * @param oldest - номер самого старого открытого снимка: прежние версии ключа, которые он может читать,
+     *               остаются за новой
+     */
+    void put(@NotNull final ByteBuffer key, @NotNull final Value value, final long oldest) {
+        final Value oldValue = map.get(key);
+        final Value latest = value.withPrevious(oldValue == null ? null : oldValue.retain(oldest));
+        map.put(key, latest);
         if (oldValue == null) {
-            sizeInBytes += key.limit() + val.getData().limit();
-        } else if (oldValue.isTombstone()) {
-            sizeInBytes += val.getData().limit();
+            sizeInBytes.addAndGet(ENTRY_OVERHEAD + key.limit() + dataSize(value));
         } else {
-            sizeInBytes += val.getData().limit() + -oldValue.getData().limit();
+            sizeInBytes.addAndGet(latest.chainSize() - oldValue.chainSize());
         }
     }
 
-    void remove(@NotNull final ByteBuffer key) {
-        final Value oldValue = map.put(key, new Value(null, true));
-        if (oldValue == null) {
-            sizeInBytes += key.limit();
-        } else if (!oldValue.isTombstone()) {
-            sizeInBytes -= oldValue.getData().limit();
-        }
+    /** Удаление диапазона ключей, ячейки диапазона остаются в таблице и закрываются им при чтении.
+     */
+    void removeRange(@NotNull final RangeTombstone tombstone) {
+        rangeTombstones.add(tombstone);
+        sizeInBytes.addAndGet(ENTRY_OVERHEAD + tombstone.sizeInBytes());
+    }
+
+    @NotNull
+    List<RangeTombstone> getRangeTombstones() {
+        return Collections.unmodifiableList(rangeTombstones);
+    }
+
+    private static long dataSize(@NotNull final Value value) {
+        final ByteBuffer data = value.getData();
+        return value.isTombstone() || data == null ? 0 : data.limit();
+    }
+
+    /** Количество ключей; обходит таблицу, поэтому годится для сброса, а не для частых вызовов.
+     */
+    int keyCount() {
+        return map.size();
+    }
+
+    boolean isEmpty() {
+        return map.isEmpty() && rangeTombstones.isEmpty();
     }
 
     long getSizeInBytes() {
-        return sizeInBytes;
+        return sizeInBytes.get();
     }
 
     long getGeneration() {
@@ -0,0 +1,110 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/** Слияние упорядоченных источников ячеек в одну последовательность, где у каждого ключа остаётся
+ * самая свежая версия: с большей меткой времени, а при равных — из источника с большим поколением.
+ * Источники лежат в двоичной куче массивом; выдача ячейки сдвигает источники, стоящие на том же ключе,
+ * прямо в куче, без промежуточного итератора и без выделения памяти на ячейку.
+ */
+final class MergeIterator implements Iterator<Cell> {
+    private final Iterator<Cell>[] sources;
+    private final Cell[] heads;
+    private int size;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    MergeIterator(@NotNull final List<Iterator<Cell>> iterators) {
+        this.sources = new Iterator[iterators.size()];
+        this.heads = new Cell[iterators.size()];
+        for (final Iterator<Cell> iterator : iterators) {
+            if (iterator.hasNext()) {
+                sources[size] = iterator;
+                heads[size] = iterator.next();
+                size++;
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return size > 0;
+    }
+
+    @Override
+    public Cell next() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        final Cell result = heads[0];
+        final ByteBuffer key = result.getKey();
+        advance();
+        while (size > 0 && heads[0].getKey().equals(key)) {
+            advance();
+        }
+        return result;
+    }
+
+    /** Сдвигает источник на вершине кучи на следующую ячейку или убирает его из кучи.
+     */
+    private void advance() {
+        final Iterator<Cell> top = sources[0];
+        if (top.hasNext()) {
+            heads[0] = top.next();
+        } else {
+            size--;
+            sources[0] = sources[size];
+            heads[0] = heads[size];
+            sources[size] = null;
+            heads[size] = null;
+        }
+        if (size > 1) {
+            siftDown(0);
+        }
+    }
+
+    private void siftDown(final int index) {
+        int parent = index;
+        final Iterator<Cell> source = sources[parent];
+        final Cell head = heads[parent];
+        while (true) {
+            int child = 2 * parent + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && less(heads[child + 1], heads[child])) {
+                child++;
+            }
+            if (!less(heads[child], head)) {
+                break;
+            }
+            sources[parent] = sources[child];
+            heads[parent] = heads[child];
+            parent = child;
+        }
+        sources[parent] = source;
+        heads[parent] = head;
+    }
+
+    /** Идёт ли left раньше right: по ключу, затем по убыванию метки времени, затем по убыванию поколения.
+     */
+    private static boolean less(@NotNull final Cell left, @NotNull final Cell right) {
+        final int byKey = left.getKey().compareTo(right.getKey());
+        if (byKey != 0) {
+            return byKey < 0;
+        }
+        final long leftTimestamp = left.getValue().getTimestamp();
+        final long rightTimestamp = right.getValue().getTimestamp();
+        if (leftTimestamp != rightTimestamp) {
+            return leftTimestamp > rightTimestamp;
+        }
+        return left.getGeneration() > right.getGeneration();
+    }
+}
@@ -1,25 +1,71 @@
 package ru.mail.polis.pokrovskiy;
 
 import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.Striped;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import ru.mail.polis.DAO;
-import ru.mail.polis.Iters;
 import ru.mail.polis.Record;
+import ru.mail.polis.Snapshot;
+import ru.mail.polis.WriteBatch;
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class MyDAO implements DAO {
+    private static final Logger log = LoggerFactory.getLogger(MyDAO.class);
     private static final ByteBuffer MIN_BYTE_BUFFER = ByteBuffer.allocate(0);
+    private static final int KEY_LOCK_STRIPES = 256;
+    private static final int BACKGROUND_COMPACTION_PICKS = 4;
     private final long maxSize;
     private final Path filesPath;
-    private MemoryTable memTable;
+    private final Config config;
+    private final Manifest manifest;
+    private volatile TableSet tableSet;
+    private volatile CommitLog commitLog;
     private long generation;
-    private final List<STable> tableList;
+    private final ReadWriteLock rotationLock = new ReentrantReadWriteLock();
+    private final Striped<Lock> keyLocks = Striped.lock(KEY_LOCK_STRIPES);
+    private final Sequencer sequencer;
+    private final Object compactionLock = new Object();
+    private volatile IOException flushFailure;
+    private final ScheduledExecutorService syncer;
+    private final ExecutorService flusher;
+    private final Statistics statistics = new Statistics();
+    private final BlockCache blockCache;
+    private final LeveledCompaction levels;
+    private final SizeTieredCompaction tiers;
+    private final CompactionThrottle throttle;
+    private final ExecutorService compactor;
+    private final ForkJoinPool compactionPool;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private final AtomicInteger tablesSinceCompaction = new AtomicInteger();
+    private final AtomicLong bytesSinceCompaction = new AtomicLong();
 
     /** Имплементация Key-value хранилища.
      * @param filesPath - путь до файла
@@ -27,78 +73,992 @@ public class MyDAO implements DAO {
      * @throws IOException - сли возникли ошибки с файлами
      */
     public MyDAO(@NotNull final Path filesPath, final long maxSize) throws IOException {
+        this(filesPath, maxSize, Config.defaults());
+    }
+
+    /** Имплементация Key-value хранилища с журналом упреждающей записи.
+     * @param filesPath - путь до файла
+     * @param maxSize - максимальный размер
+     * @param config - настройки хранилища
+     * @throws IOException - если возникли ошибки с файлами
+     */
+    public MyDAO(@NotNull final Path filesPath, final long maxSize, @NotNull final Config config) throws IOException {
         this.maxSize = maxSize;
         this.filesPath = filesPath;
-        this.tableList = STable.findTables(filesPath);
-        this.generation = tableList.size() + 1L;
-        this.memTable = new MemoryTable(generation);
+        this.config = config;
+        this.blockCache = new BlockCache(config.getBlockCacheSize(), statistics);
+        this.levels = new LeveledCompaction(config);
+        this.tiers = new SizeTieredCompaction(config, maxSize);
+        this.throttle = new CompactionThrottle(config.getCompactionRateLimit());
+        this.manifest = new Manifest(filesPath);
+        final List<STable> tables = manifest.isFound() ? describedTables()
+                : STable.findTables(filesPath, config, blockCache, statistics);
+        Collections.sort(tables);
+        final List<Path> logs = CommitLog.findLogs(filesPath);
+        this.generation = manifest.getLastGeneration() + 1;
+        for (final STable table : tables) {
+            generation = Math.max(generation, table.getGeneration() + 1);
+        }
+        for (final Path log : logs) {
+            generation = Math.max(generation, CommitLog.getGeneration(log) + 1);
+        }
+        // Старые таблицы узнают наибольшую метку до переписывания манифеста, чтобы он её сохранил
+        final long lastInTables = lastSequence(tables);
+        recover(logs, tables);
+        this.sequencer = new Sequencer(Math.max(lastInTables, lastSequence(tables)));
+        this.tableSet = new TableSet(new MemoryTable(generation), new ArrayList<>(), tables);
+        this.commitLog = CommitLog.create(filesPath, generation, config.getSyncPolicy());
+        if (config.getSyncPolicy().getMode() == SyncPolicy.Mode.INTERVAL) {
+            this.syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread thread = new Thread(r, "commit-log-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            final long interval = config.getSyncPolicy().getThreshold();
+            syncer.scheduleWithFixedDelay(() -> commitLog.backgroundSync(), interval, interval, TimeUnit.MILLISECONDS);
+        } else {
+            this.syncer = null;
+        }
+        this.flusher = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "memtable-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (config.getCompactionTriggerTables() > 0 || config.getCompactionTriggerBytes() > 0) {
+            this.compactor = Executors.newSingleThreadExecutor(r -> {
+                final Thread thread = new Thread(r, "background-compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.compactor = null;
+        }
+        final int threads = config.getCompactionThreads();
+        this.compactionPool = threads > 1 ? new ForkJoinPool(threads) : null;
+    }
+
+    /** Таблицы по описаниям из манифеста; файлы таблиц, которых в нём нет, удаляются.
+     */
+    @NotNull
+    private List<STable> describedTables() throws IOException {
+        final List<STable> tables = new ArrayList<>();
+        for (final ByteBuffer description : manifest.getTables()) {
+            tables.add(STable.described(filesPath, description, config, blockCache, statistics));
+        }
+        final int orphans = STable.removeOrphans(filesPath, tables);
+        if (orphans > 0) {
+            log.info("Removed {} table files missing from manifest", orphans);
+        }
+        return tables;
+    }
+
+    /** Сбрасывает на диск записи журналов и записывает в манифест набор таблиц вместе со сброшенными,
+     * после чего журналы больше не нужны.
+     */
+    private void recover(@NotNull final List<Path> logs, @NotNull final List<STable> tables) throws IOException {
+        MemoryTable memTable = new MemoryTable(generation);
+        for (final Path log : logs) {
+            CommitLog.replay(log, memTable);
+            if (memTable.getSizeInBytes() > maxSize) {
+                tables.add(writeToDisk(memTable));
+                generation += 1;
+                memTable = new MemoryTable(generation);
+            }
+        }
+        if (!memTable.isEmpty()) {
+            tables.add(writeToDisk(memTable));
+            generation += 1;
+        }
+        manifest.rewrite(tables, generation);
+        for (final Path log : logs) {
+            Files.deleteIfExists(log);
+        }
     }
 
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        final Iterator<Cell> cellIterator = cellIterator(from);
-        final Iterator<Cell> filteredIterator = Iterators
-                .filter(cellIterator, cell -> !cell.getValue().isTombstone());
-        return Iterators.transform(filteredIterator, cell -> Record.of(cell.getKey(), cell.getValue().getData()));
+        return range(from, null);
+    }
+
+    /** Граница to передаётся каждой таблице: таблицы на диске не читают блоки за ней,
+     * а таблицы в памяти обходят только поддиапазон ключей.
+     * Итератор читает последние версии, как {@link #get}, и не открывает снимка: он не ждёт
+     * незавершённых записей и не удерживает старые версии. Согласованное чтение даёт {@link #snapshot()}.
+     * Итератор реализует {@link Closeable}: закрытый недочитанный итератор сразу отпускает прочитанные таблицы.
+     */
+    @NotNull
+    @Override
+    public Iterator<Record> range(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        return records(cellIterator(from, to, acquire(), Sequencer.LATEST));
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final TableSet current = acquire();
+        try {
+            return get(key, current, Sequencer.LATEST);
+        } finally {
+            current.release();
+        }
+    }
+
+    /** Снимок хранилища: видит записи, завершённые до его открытия, и не видит последующих.
+     * Снимок удерживает свой набор таблиц, поэтому слитые компакцией файлы живут до его закрытия.
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() throws IOException {
+        final TableSet current = acquire();
+        try {
+            return new ReadSnapshot(current, sequencer.acquire());
+        } catch (IOException e) {
+            current.release();
+            throw e;
+        }
+    }
+
+    /** Наибольший номер записи в таблицах. Номера продолжают метки времени таблиц, записанных до их появления,
+     * поэтому новые записи старше всего, что в этих таблицах есть.
+     */
+    private static long lastSequence(@NotNull final List<STable> tables) throws IOException {
+        long last = 0;
+        for (final STable table : tables) {
+            last = Math.max(last, table.getMaxTimestamp());
+        }
+        return last;
+    }
+
+    @NotNull
+    private static Iterator<Record> records(@NotNull final SnapshotIterator cells) {
+        final Iterator<Cell> filteredIterator = Iterators.filter(cells, cell -> !cell.getValue().isTombstone());
+        return new Records(Iterators.transform(filteredIterator,
+                cell -> Record.of(onHeap(cell.getKey()), onHeap(cell.getValue().getData()))), cells);
+    }
+
+    /** Буфер в куче с содержимым buffer. Ячейки таблиц, читаемых через отображение, ссылаются
+     * на отображение файла, которое снимается при закрытии таблицы, поэтому наружу отдаются копии.
+     */
+    @NotNull
+    private static ByteBuffer onHeap(@NotNull final ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return buffer;
+        }
+        return ByteBuffer.allocate(buffer.remaining()).put(buffer.duplicate()).flip();
+    }
+
+    @NotNull
+    private ByteBuffer get(@NotNull final ByteBuffer key,
+                           @NotNull final TableSet current,
+                           final long sequence) throws IOException {
+        final Value value = find(key, current, sequence);
+        if (value == null || value.isTombstone() || current.isRangeDeleted(key, value.getTimestamp(), sequence)) {
+            throw new NoSuchElementException("Not found");
+        }
+        return onHeap(value.getData()).asReadOnlyBuffer();
+    }
+
+    /** Версия ключа, видимая снимку sequence.
+     */
+    @Nullable
+    private Value find(@NotNull final ByteBuffer key,
+                       @NotNull final TableSet current,
+                       final long sequence) throws IOException {
+        final Value latest = current.getMemTable().get(key, sequence);
+        if (latest != null) {
+            return latest;
+        }
+        final List<MemoryTable> memTables = current.getFlushing();
+        for (int i = memTables.size() - 1; i >= 0; i--) {
+            final Value value = memTables.get(i).get(key, sequence);
+            if (value != null) {
+                return value;
+            }
+        }
+        final List<STable> tables = current.getTables();
+        for (int i = tables.size() - 1; i >= 0; i--) {
+            final STable table = tables.get(i);
+            if (!table.inKeyRange(key)) {
+                statistics.keyRangeSkip();
+                continue;
+            }
+            if (!table.mightContain(key)) {
+                statistics.bloomNegative();
+                continue;
+            }
+            final Cell cell = table.get(key);
+            if (table.hasBloomFilter()) {
+                statistics.bloomPositive(cell != null);
+            }
+            if (cell != null) {
+                return cell.getValue();
+            }
+        }
+        return null;
+    }
+
+    /** Счётчики работы хранилища.
+     */
+    @NotNull
+    public Statistics getStatistics() {
+        return statistics;
+    }
+
+    /** Объём памяти индексов каждой таблицы на диске по номеру поколения.
+     */
+    @NotNull
+    public Map<Long, Long> getIndexSizes() {
+        final Map<Long, Long> sizes = new TreeMap<>();
+        for (final STable table : tableSet.getTables()) {
+            sizes.put(table.getGeneration(), table.indexSizeInBytes());
+        }
+        return sizes;
+    }
+
+    /** Уровень каждой таблицы на диске по номеру поколения.
+     */
+    @NotNull
+    public Map<Long, Integer> getTableLevels() {
+        final Map<Long, Integer> result = new TreeMap<>();
+        for (final STable table : tableSet.getTables()) {
+            result.put(table.getGeneration(), table.getLevel());
+        }
+        return result;
+    }
+
+    /** Ячейки снимка sequence на наборе current с ключами от from до to не включительно,
+     * при {@link Sequencer#LATEST} — последние версии без снимка.
+     * Ссылки на набор и снимок переходят к итератору и отпускаются, когда он дочитан, закрыт или брошен.
+     */
+    @NotNull
+    private SnapshotIterator cellIterator(@NotNull final ByteBuffer from,
+                                          @Nullable final ByteBuffer to,
+                                          @NotNull final TableSet current,
+                                          final long sequence) throws IOException {
+        try {
+            final List<Iterator<Cell>> cellIterator = new ArrayList<>();
+            for (final STable table : current.getTables()) {
+                if (table.overlaps(from, to)) {
+                    cellIterator.add(table.iteratorFromTable(from, to));
+                } else {
+                    statistics.keyRangeSkip();
+                }
+            }
+            for (final MemoryTable table : current.getFlushing()) {
+                cellIterator.add(table.iterator(from, to, sequence));
+            }
+            cellIterator.add(current.getMemTable().iterator(from, to, sequence));
+            final List<RangeTombstone> ranges = current.getRangeTombstones(sequence);
+            final Iterator<Cell> cells = ranges.isEmpty() ? merge(cellIterator) : Iterators.filter(merge(cellIterator),
+                    cell -> !RangeTombstone.covers(ranges, cell.getKey(), cell.getValue().getTimestamp()));
+            return new SnapshotIterator(cells, current, sequencer, sequence);
+        } catch (IOException | RuntimeException e) {
+            current.release();
+            sequencer.release(sequence);
+            throw e;
+        }
     }
 
-    private Iterator<Cell> cellIterator(@NotNull final ByteBuffer from) throws IOException {
-        final List<Iterator<Cell>> cellIterator = new ArrayList<>();
-        for (final STable table : tableList) {
-            cellIterator.add(table.iteratorFromTable(from));
+    /** Текущий набор таблиц со взятой ссылкой: его файлы не удалятся до {@link TableSet#release()}.
+     */
+    @NotNull
+    private TableSet acquire() {
+        while (true) {
+            final TableSet current = tableSet;
+            if (current.tryRetain()) {
+                return current;
+            }
         }
-        cellIterator.add(memTable.iterator(from));
-        final Iterator<Cell> sortedIterator =
-                Iterators.mergeSorted(cellIterator, Comparator.naturalOrder());
-        return Iters.collapseEquals(sortedIterator, Cell::getKey);
+    }
+
+    /** Делает next текущим набором и отпускает ссылку хранилища на прежний.
+     */
+    private void publish(@NotNull final TableSet next) throws IOException {
+        assert Thread.holdsLock(this);
+        final TableSet previous = tableSet;
+        tableSet = next;
+        previous.release();
+    }
+
+    @NotNull
+    private static Iterator<Cell> merge(@NotNull final List<Iterator<Cell>> iterators) {
+        return new MergeIterator(iterators);
     }
 
     @Override
     public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
-        memTable.upsert(key.duplicate(), value.duplicate());
-        flushIfNeed();
+        write(key.duplicate(), value.duplicate());
     }
 
     @Override
     public void remove(@NotNull final ByteBuffer key) throws IOException {
-        memTable.remove(key.duplicate());
-        flushIfNeed();
+        write(key.duplicate(), null);
+    }
+
+    /** Удаляет ключи от from включительно до to не включительно одной записью вместо надгробия на каждый ключ.
+     * @param to - конец диапазона не включительно, null для удаления до конца ключей
+     */
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        if (to != null && from.compareTo(to) >= 0) {
+            return;
+        }
+        checkFlushFailure();
+        rotationLock.readLock().lock();
+        try {
+            final long sequence = sequencer.next();
+            try {
+                final RangeTombstone tombstone = new RangeTombstone(from.duplicate(),
+                        to == null ? null : to.duplicate(), sequence);
+                commitLog.appendRange(tombstone);
+                tableSet.getMemTable().removeRange(tombstone);
+            } finally {
+                sequencer.complete(sequence);
+            }
+        } finally {
+            rotationLock.readLock().unlock();
+        }
+        rotateIfFull();
+    }
+
+    /** Применяет пакет как одну запись: блокировки всех его ключей берутся разом в порядке полос,
+     * все ячейки получают один номер, пишутся в журнал одной записью и попадают в одну таблицу в памяти;
+     * снимки и итераторы видят пакет целиком или не видят вовсе.
+     */
+    @Override
+    public void apply(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        checkFlushFailure();
+        final List<ByteBuffer> keys = new ArrayList<>(batch.size());
+        for (final WriteBatch.Operation operation : batch.getOperations()) {
+            keys.add(operation.getKey());
+        }
+        final Iterable<Lock> locks = keyLocks.bulkGet(keys);
+        for (final Lock lock : locks) {
+            lock.lock();
+        }
+        try {
+            rotationLock.readLock().lock();
+            try {
+                final long sequence = sequencer.next();
+                try {
+                    final List<Value> values = new ArrayList<>(batch.size());
+                    for (final WriteBatch.Operation operation : batch.getOperations()) {
+                        values.add(new Value(operation.getValue(), sequence, operation.isRemove()));
+                    }
+                    commitLog.appendBatch(keys, values);
+                    final MemoryTable memTable = tableSet.getMemTable();
+                    final long oldest = sequencer.oldestSnapshot();
+                    for (int i = 0; i < keys.size(); i++) {
+                        memTable.put(keys.get(i), values.get(i), oldest);
+                    }
+                } finally {
+                    sequencer.complete(sequence);
+                }
+            } finally {
+                rotationLock.readLock().unlock();
+            }
+        } finally {
+            for (final Lock lock : locks) {
+                lock.unlock();
+            }
+        }
+        rotateIfFull();
+    }
+
+    /** Записи одного ключа упорядочены блокировкой ключа: в журнал и в таблицу они попадают в одном порядке
+     * и получают возрастающие номера. Номер выдаётся под блокировкой замены таблицы в памяти, поэтому
+     * замена ждёт завершения записей со всеми выданными номерами, и в таблицах, кроме текущей, нет записей
+     * новее снимков, открытых после замены.
+     */
+    private void write(@NotNull final ByteBuffer key, @Nullable final ByteBuffer data) throws IOException {
+        checkFlushFailure();
+        final Lock keyLock = keyLocks.get(key);
+        keyLock.lock();
+        try {
+            rotationLock.readLock().lock();
+            try {
+                final long sequence = sequencer.next();
+                try {
+                    final Value value = new Value(data, sequence, data == null);
+                    commitLog.append(key, value);
+                    tableSet.getMemTable().put(key, value, sequencer.oldestSnapshot());
+                } finally {
+                    sequencer.complete(sequence);
+                }
+            } finally {
+                rotationLock.readLock().unlock();
+            }
+        } finally {
+            keyLock.unlock();
+        }
+        rotateIfFull();
+    }
+
+    /** Заменяет переполненную таблицу в памяти после записи. Запись к этому моменту уже в журнале и в таблице,
+     * поэтому о сбое фонового сброса здесь не сообщается: его бросит следующая запись, ещё ничего не изменив.
+     */
+    private void rotateIfFull() throws IOException {
+        if (tableSet.getMemTable().getSizeInBytes() > maxSize) {
+            rotate(false);
+        }
+    }
+
+    /** Заменяет таблицу в памяти и журнал новыми, а прежнюю таблицу отправляет на сброс в фоне.
+     * @param reserve - пропустить поколение между прежней и новой таблицей для результата компакции
+     * @return пропущенное поколение или 0, если таблицу уже заменил другой поток или сброс не удался
+     */
+    private long rotate(final boolean reserve) throws IOException {
+        final MemoryTable table;
+        final CommitLog log;
+        final long reserved;
+        synchronized (this) {
+            while (tableSet.getFlushing().size() >= config.getMaxFlushQueue() && flushFailure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for flush", e);
+                }
+            }
+            if (!reserve && (flushFailure != null || tableSet.getMemTable().getSizeInBytes() <= maxSize)) {
+                return 0;
+            }
+            checkFlushFailure();
+            rotationLock.writeLock().lock();
+            try {
+                table = tableSet.getMemTable();
+                log = commitLog;
+                reserved = generation + 1;
+                generation += reserve ? 2 : 1;
+                publish(tableSet.rotate(new MemoryTable(generation)));
+                commitLog = CommitLog.create(filesPath, generation, config.getSyncPolicy());
+            } finally {
+                rotationLock.writeLock().unlock();
+            }
+        }
+        log.close();
+        if (table.isEmpty()) {
+            log.delete();
+        } else {
+            flusher.execute(() -> flushInBackground(table, log));
+        }
+        return reserved;
+    }
+
+    private void flushInBackground(@NotNull final MemoryTable table, @NotNull final CommitLog log) {
+        try {
+            final STable sTable = writeToDisk(table);
+            synchronized (this) {
+                manifest.apply(List.of(), List.of(sTable), generation);
+                // Журнал удаляется до того, как очередь сброса освободится: журналов не больше, чем таблиц в памяти
+                log.delete();
+                publish(tableSet.flushed(table, sTable));
+                notifyAll();
+            }
+            tablesSinceCompaction.incrementAndGet();
+            bytesSinceCompaction.addAndGet(sTable.sizeInBytes());
+            scheduleCompaction();
+        } catch (IOException e) {
+            failFlush(e);
+        } catch (RuntimeException | OutOfMemoryError e) {
+            failFlush(new IOException("Can't flush generation " + table.getGeneration(), e));
+        }
+    }
+
+    private synchronized void failFlush(@NotNull final IOException e) {
+        flushFailure = e;
+        notifyAll();
     }
 
-    private void flushIfNeed() throws IOException {
-        if (memTable.getSizeInBytes() > maxSize) {
-            flush();
+    private synchronized void awaitFlushes() throws IOException {
+        while (!tableSet.getFlushing().isEmpty() && flushFailure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for flush", e);
+            }
         }
+        checkFlushFailure();
     }
 
-    private void flush() throws IOException {
-        tableList.add(STable.writeTable(memTable.iterator(MIN_BYTE_BUFFER), memTable.getGeneration(), filesPath));
-        generation += 1;
-        memTable = new MemoryTable(generation);
+    private void checkFlushFailure() throws IOException {
+        final IOException failure = flushFailure;
+        if (failure != null) {
+            throw new IOException("Background flush failed", failure);
+        }
+    }
+
+    @NotNull
+    private STable writeToDisk(@NotNull final MemoryTable table) throws IOException {
+        final STable sTable = STable.writeTable(table.iterator(MIN_BYTE_BUFFER), table.keyCount(),
+                table.getGeneration(), 0, table.getGeneration(), table.getRangeTombstones(), filesPath, config,
+                blockCache, statistics);
+        statistics.flushed(sTable.sizeInBytes());
+        return sTable;
     }
 
     @Override
     public void close() throws IOException {
-        if (memTable.getSizeInBytes() > 0) {
-            flush();
+        if (syncer != null) {
+            syncer.shutdownNow();
+        }
+        try {
+            awaitFlushes();
+            awaitTermination(flusher);
+            if (compactor != null) {
+                awaitTermination(compactor);
+            }
+            if (compactionPool != null) {
+                awaitTermination(compactionPool);
+            }
+            final MemoryTable memTable = tableSet.getMemTable();
+            if (!memTable.isEmpty()) {
+                final STable last = writeToDisk(memTable);
+                try {
+                    synchronized (this) {
+                        manifest.apply(List.of(), List.of(last), generation);
+                    }
+                } finally {
+                    last.close();
+                }
+            }
+            commitLog.delete();
+        } finally {
+            flusher.shutdown();
+            if (compactor != null) {
+                compactor.shutdown();
+            }
+            if (compactionPool != null) {
+                compactionPool.shutdown();
+            }
+            try {
+                tableSet.release();
+            } finally {
+                manifest.close();
+            }
         }
-        for (final STable table : tableList) {
-            table.close();
+    }
+
+    /** Дожидается задач, начатых до закрытия; новые задачи исполнитель больше не принимает.
+     */
+    private static void awaitTermination(@NotNull final ExecutorService executor) throws IOException {
+        executor.shutdown();
+        try {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.info("Waiting for background tasks to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for background tasks", e);
         }
     }
 
+    /** Сбрасывает текущую таблицу в памяти и сливает таблицы на диске выбранным в настройках способом:
+     * все в одну, по уровням, пока уровни не придут в норму, или ярусами близких по объёму таблиц.
+     * Запись и чтение во время компакции продолжаются, новые сбросы остаются отдельными таблицами.
+     * Файлы слитых таблиц удаляются, когда их отпустят все открытые на них чтения.
+     */
     @Override
     public void compact() throws IOException {
-        final Iterator<Cell> cells = cellIterator(MIN_BYTE_BUFFER);
-        final STable compactTable = STable.writeTable(cells, generation, filesPath);
-        for (final STable table: tableList) {
-            table.close();
-        }
-        tableList.clear();
-        STable.deleteOldTables(filesPath, compactTable.getFile());
-        tableList.add(compactTable);
-        generation++;
-        memTable = new MemoryTable(generation);
+        synchronized (compactionLock) {
+            final long target = rotate(true);
+            awaitFlushes();
+            resetCompactionTrigger();
+            if (config.getCompactionStyle() == CompactionStyle.FULL) {
+                final TableSet current = acquire();
+                try {
+                    compactAll(current, target);
+                } finally {
+                    current.release();
+                }
+            } else {
+                compactIncrementally(Integer.MAX_VALUE);
+            }
+        }
+    }
+
+    /** Ставит компакцию в очередь фонового потока, если после прошлой компакции сброшено
+     * достаточно таблиц или байт, а компакция ещё не стоит в очереди.
+     */
+    private void scheduleCompaction() {
+        if (compactor == null) {
+            return;
+        }
+        final int tables = config.getCompactionTriggerTables();
+        final long bytes = config.getCompactionTriggerBytes();
+        final boolean triggered = (tables > 0 && tablesSinceCompaction.get() >= tables)
+                || (bytes > 0 && bytesSinceCompaction.get() >= bytes);
+        if (triggered) {
+            submitCompaction();
+        }
+    }
+
+    private void submitCompaction() {
+        if (!compactionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            compactor.execute(this::compactInBackground);
+        } catch (RejectedExecutionException e) {
+            compactionScheduled.set(false);
+        }
+    }
+
+    /** Компакция в фоне не сбрасывает таблицу в памяти и сливает только таблицы на диске.
+     * За один проход делается не больше {@link #BACKGROUND_COMPACTION_PICKS} слияний, а оставшиеся
+     * ставятся в очередь заново: при непрерывных сбросах проход иначе не кончался бы
+     * и держал блокировку компакции, не пуская {@link #compact()} и {@link #close()}.
+     * Ошибка оставляет таблицы как были, следующий сброс запустит компакцию снова.
+     */
+    private void compactInBackground() {
+        boolean more = false;
+        try {
+            synchronized (compactionLock) {
+                resetCompactionTrigger();
+                if (config.getCompactionStyle() == CompactionStyle.FULL) {
+                    final TableSet current = acquire();
+                    try {
+                        if (current.getTables().size() > 1) {
+                            compactRun(current, current.getTables());
+                        }
+                    } finally {
+                        current.release();
+                    }
+                } else {
+                    more = compactIncrementally(BACKGROUND_COMPACTION_PICKS);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            log.warn("Background compaction failed", e);
+        } finally {
+            compactionScheduled.set(false);
+        }
+        if (more) {
+            submitCompaction();
+        } else {
+            scheduleCompaction();
+        }
+    }
+
+    private void resetCompactionTrigger() {
+        tablesSinceCompaction.set(0);
+        bytesSinceCompaction.set(0);
+    }
+
+    /** Делает не больше maxPicks слияний по уровням или ярусам.
+     * @return осталось ли что сливать
+     */
+    private boolean compactIncrementally(final int maxPicks) throws IOException {
+        if (config.getCompactionStyle() == CompactionStyle.LEVELED) {
+            return compactLevels(maxPicks);
+        } else {
+            return compactTiers(maxPicks);
+        }
+    }
+
+    private boolean compactLevels(final int maxPicks) throws IOException {
+        for (int i = 0; i < maxPicks; i++) {
+            final TableSet current = acquire();
+            try {
+                final LeveledCompaction.Plan plan = levels.pick(current.getTables());
+                if (plan == null) {
+                    return false;
+                }
+                compactLevel(current, plan);
+            } finally {
+                current.release();
+            }
+        }
+        return true;
+    }
+
+    /** Сливает таблицы плана в файлы уровня плана не больше заданного объёма.
+     * Поколения результатов выдаются из общего счётчика, свежесть же определяется уровнем.
+     */
+    private void compactLevel(@NotNull final TableSet current,
+                              @NotNull final LeveledCompaction.Plan plan) throws IOException {
+        final List<STable> sources = new ArrayList<>(plan.getUpper());
+        sources.addAll(plan.getLower());
+        final TombstoneFilter tombstones = new TombstoneFilter(current.getTables(), sources);
+        final Iterator<Cell> cells = mergeTables(sources, tombstones, MIN_BYTE_BUFFER, null);
+        final List<STable> results = new ArrayList<>();
+        List<RangeTombstone> ranges = tombstones.getRetained();
+        final long keys = estimateKeyCount(sources);
+        while (cells.hasNext() || !ranges.isEmpty()) {
+            final long output = nextGeneration();
+            final Iterator<Cell> part = LeveledCompaction.limit(cells, config.getTargetFileSize());
+            results.add(STable.writeTable(part, keys, output, plan.getLevel(), output, ranges, filesPath, config,
+                    blockCache, statistics));
+            ranges = List.of();
+        }
+        replace(sources, results, tombstones);
+        statistics.compacted(plan.getLevel(), totalSize(plan.getUpper()), totalSize(results));
+    }
+
+    private boolean compactTiers(final int maxPicks) throws IOException {
+        for (int i = 0; i < maxPicks; i++) {
+            final TableSet current = acquire();
+            try {
+                final List<STable> tier = tiers.pick(current.getTables());
+                if (tier == null) {
+                    return false;
+                }
+                compactRun(current, tier);
+            } finally {
+                current.release();
+            }
+        }
+        return true;
+    }
+
+    /** Сливает подряд идущие таблицы на место самой свежей из них.
+     */
+    private void compactRun(@NotNull final TableSet current, @NotNull final List<STable> sources) throws IOException {
+        final STable newest = sources.get(sources.size() - 1);
+        final TombstoneFilter tombstones = new TombstoneFilter(current.getTables(), sources);
+        final List<STable> results = writeMerged(sources, tombstones, nextGeneration(), newest.getLevel(),
+                newest.getDataGeneration());
+        replace(sources, results, tombstones);
+        statistics.compacted(newest.getLevel(), 0, totalSize(results));
+    }
+
+    private void compactAll(@NotNull final TableSet current, final long target) throws IOException {
+        final List<STable> sources = new ArrayList<>();
+        for (final STable table : current.getTables()) {
+            if (table.getGeneration() < target) {
+                sources.add(table);
+            }
+        }
+        if (sources.isEmpty()) {
+            return;
+        }
+        final TombstoneFilter tombstones = new TombstoneFilter(current.getTables(), sources);
+        final List<STable> results = writeMerged(sources, tombstones, target, 0, target);
+        replace(sources, results, tombstones);
+        statistics.compacted(0, 0, totalSize(results));
+    }
+
+    /** Сливает таблицы в таблицы с заданными уровнем и поколением данных.
+     * Большое слияние делится на диапазоны ключей, которые пишутся в отдельные таблицы параллельно;
+     * таблицы результата не пересекаются по ключам, поэтому одинаковое поколение данных им не мешает.
+     * @param generation - поколение первой таблицы результата, остальные получают новые поколения
+     */
+    @NotNull
+    private List<STable> writeMerged(@NotNull final List<STable> sources,
+                                     @NotNull final TombstoneFilter tombstones,
+                                     final long generation,
+                                     final int level,
+                                     final long dataGeneration) throws IOException {
+        final List<ByteBuffer> splits = compactionPool == null ? List.of()
+                : CompactionRanges.splitKeys(sources, config.getCompactionThreads());
+        if (splits.isEmpty()) {
+            final STable result = writeRange(sources, tombstones, tombstones.getRetained(), MIN_BYTE_BUFFER, null,
+                    generation, level, dataGeneration);
+            return result == null ? List.of() : List.of(result);
+        }
+        final List<ForkJoinTask<STable>> tasks = new ArrayList<>();
+        for (int i = 0; i <= splits.size(); i++) {
+            final ByteBuffer from = i == 0 ? MIN_BYTE_BUFFER : splits.get(i - 1);
+            final ByteBuffer to = i == splits.size() ? null : splits.get(i);
+            final long output = i == 0 ? generation : nextGeneration();
+            final List<RangeTombstone> ranges = i == 0 ? tombstones.getRetained() : List.of();
+            tasks.add(compactionPool.submit(() -> writeRange(sources, tombstones, ranges, from, to, output, level,
+                    dataGeneration)));
+        }
+        final List<STable> results = new ArrayList<>();
+        IOException failure = null;
+        for (final ForkJoinTask<STable> task : tasks) {
+            try {
+                final STable result = task.get();
+                if (result != null) {
+                    results.add(result);
+                }
+            } catch (ExecutionException e) {
+                final IOException cause = new IOException("Can't compact range", e.getCause());
+                if (failure == null) {
+                    failure = cause;
+                } else {
+                    failure.addSuppressed(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for compaction", e);
+            }
+        }
+        if (failure != null) {
+            for (final STable result : results) {
+                result.close();
+                Files.deleteIfExists(result.getFile());
+            }
+            throw failure;
+        }
+        return results;
+    }
+
+    /** Таблица из ячеек диапазона или null, если в диапазоне нет ни ячеек, ни удалений диапазонов.
+     * @param ranges - удаления диапазонов, которые нужно записать в таблицу
+     */
+    @Nullable
+    private STable writeRange(@NotNull final List<STable> sources,
+                              @NotNull final TombstoneFilter tombstones,
+                              @NotNull final List<RangeTombstone> ranges,
+                              @NotNull final ByteBuffer from,
+                              @Nullable final ByteBuffer to,
+                              final long generation,
+                              final int level,
+                              final long dataGeneration) throws IOException {
+        final Iterator<Cell> cells = mergeTables(sources, tombstones, from, to);
+        if (!cells.hasNext() && ranges.isEmpty()) {
+            return null;
+        }
+        return STable.writeTable(cells, estimateKeyCount(sources), generation, level, dataGeneration, ranges,
+                filesPath, config, blockCache, statistics);
+    }
+
+    /** Оценка сверху количества ключей результата слияния sources.
+     */
+    private static long estimateKeyCount(@NotNull final List<STable> sources) throws IOException {
+        long keys = 0;
+        for (final STable table : sources) {
+            keys += table.estimateKeyCount();
+        }
+        return keys;
+    }
+
+    /** Слияние ячеек таблиц с ключами от from включительно до to не включительно для компакции
+     * без ненужных надгробий: и чтение таблиц, и выдача ячеек на запись идут не быстрее заданной в настройках скорости.
+     */
+    @NotNull
+    private Iterator<Cell> mergeTables(@NotNull final List<STable> sources,
+                                       @NotNull final TombstoneFilter tombstones,
+                                       @NotNull final ByteBuffer from,
+                                       @Nullable final ByteBuffer to) throws IOException {
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+        for (final STable table : sources) {
+            if (table.overlaps(from, to)) {
+                iterators.add(throttle.throttle(table.iteratorFromTable(from, to)));
+            }
+        }
+        return throttle.throttle(tombstones.filter(merge(iterators)));
+    }
+
+    private synchronized long nextGeneration() {
+        return ++generation;
+    }
+
+    /** Заменяет слитые таблицы результатом компакции; файлы слитых таблиц удалятся после последнего чтения.
+     * Если замену не удалось записать в манифест, набор остаётся прежним, а файлы результата
+     * удалятся при следующем открытии как лишние.
+     */
+    private void replace(@NotNull final List<STable> sources,
+                         @NotNull final List<STable> results,
+                         @NotNull final TombstoneFilter tombstones) throws IOException {
+        synchronized (this) {
+            try {
+                manifest.apply(sources, results, generation);
+            } catch (IOException e) {
+                for (final STable result : results) {
+                    result.close();
+                }
+                throw e;
+            }
+            publish(tableSet.compacted(sources, results));
+        }
+        for (final STable table : sources) {
+            table.markObsolete();
+        }
+        statistics.droppedTombstones(tombstones.getDropped());
+        log.info("Compacted {} tables into {}, dropped {} tombstones, {} cells under range deletions"
+                        + " and {} range deletions", sources.size(), results.size(), tombstones.getDropped(),
+                tombstones.getCovered(), tombstones.getDroppedRanges());
+    }
+
+    private static long totalSize(@NotNull final List<STable> tables) {
+        long size = 0;
+        for (final STable table : tables) {
+            size += table.sizeInBytes();
+        }
+        return size;
+    }
+
+    /** Записи итератора по хранилищу или снимку. Закрытие сразу отпускает таблицы, которые держит
+     * недочитанный итератор, иначе они освобождаются только после сборки мусора.
+     */
+    private static final class Records implements Iterator<Record>, Closeable {
+        private final Iterator<Record> delegate;
+        private final SnapshotIterator cells;
+
+        Records(@NotNull final Iterator<Record> delegate, @NotNull final SnapshotIterator cells) {
+            this.delegate = delegate;
+            this.cells = cells;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public Record next() {
+            return delegate.next();
+        }
+
+        @Override
+        public void close() {
+            cells.close();
+        }
+    }
+
+    /** Снимок на наборе таблиц current с номером sequence; ссылки на набор и номер держатся до закрытия.
+     * Итераторы снимка берут собственные ссылки и могут дочитываться после его закрытия.
+     */
+    private final class ReadSnapshot implements Snapshot {
+        private final TableSet current;
+        private final long sequence;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        ReadSnapshot(@NotNull final TableSet current, final long sequence) {
+            this.current = current;
+            this.sequence = sequence;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+            return range(from, null);
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> range(@NotNull final ByteBuffer from,
+                                      @Nullable final ByteBuffer to) throws IOException {
+            if (closed.get() || !current.tryRetain()) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            sequencer.retain(sequence);
+            return records(cellIterator(from, to, current, sequence));
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+            if (closed.get()) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+            return MyDAO.this.get(key, current, sequence);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) {
+                sequencer.release(sequence);
+                current.release();
+            }
+        }
     }
 }
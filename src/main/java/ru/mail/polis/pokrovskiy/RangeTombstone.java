@@ -0,0 +1,121 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/** Удаление диапазона ключей: закрывает записи с ключами от from включительно до to не включительно,
+ * сделанные не позже его метки времени. Хранится одной записью в журнале, таблице в памяти
+ * и метаданных таблицы на диске, а не надгробием на каждый ключ.
+ */
+final class RangeTombstone {
+    private static final int NO_UPPER_BOUND = -1;
+
+    private final ByteBuffer from;
+    @Nullable
+    private final ByteBuffer to;
+    private final long timestamp;
+
+    /** Удаление диапазона.
+     * @param from - начало диапазона включительно
+     * @param to - конец диапазона не включительно, null для диапазона до конца ключей
+     * @param timestamp - метка времени удаления
+     */
+    RangeTombstone(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to, final long timestamp) {
+        this.from = from;
+        this.to = to;
+        this.timestamp = timestamp;
+    }
+
+    @NotNull
+    ByteBuffer getFrom() {
+        return from.duplicate();
+    }
+
+    @Nullable
+    ByteBuffer getTo() {
+        return to == null ? null : to.duplicate();
+    }
+
+    long getTimestamp() {
+        return timestamp;
+    }
+
+    /** Закрывает ли удаление запись key, сделанную в момент timestamp.
+     */
+    boolean covers(@NotNull final ByteBuffer key, final long timestamp) {
+        return timestamp <= this.timestamp && from.compareTo(key) <= 0 && (to == null || to.compareTo(key) > 0);
+    }
+
+    /** Пересекается ли диапазон с ключами от min до max включительно; null означает отсутствие границы.
+     */
+    boolean overlaps(@Nullable final ByteBuffer min, @Nullable final ByteBuffer max) {
+        return (max == null || from.compareTo(max) <= 0) && (min == null || to == null || to.compareTo(min) > 0);
+    }
+
+    /** Закрыта ли запись key, сделанная в момент timestamp, хотя бы одним из удалений.
+     */
+    static boolean covers(@NotNull final Collection<RangeTombstone> tombstones,
+                          @NotNull final ByteBuffer key,
+                          final long timestamp) {
+        for (final RangeTombstone tombstone : tombstones) {
+            if (tombstone.covers(key, timestamp)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    long sizeInBytes() {
+        return from.remaining() + (to == null ? 0 : to.remaining());
+    }
+
+    /** Размер удалений в метаданных таблицы: количество, затем у каждого метка времени,
+     * длина и ключ начала, длина и ключ конца или -1 без конца.
+     */
+    static int serializedSize(@NotNull final Collection<RangeTombstone> tombstones) {
+        int size = Integer.BYTES;
+        for (final RangeTombstone tombstone : tombstones) {
+            size += Long.BYTES + Integer.BYTES * 2 + (int) tombstone.sizeInBytes();
+        }
+        return size;
+    }
+
+    static void writeTo(@NotNull final ByteBuffer buffer, @NotNull final Collection<RangeTombstone> tombstones) {
+        buffer.putInt(tombstones.size());
+        for (final RangeTombstone tombstone : tombstones) {
+            buffer.putLong(tombstone.timestamp);
+            buffer.putInt(tombstone.from.remaining()).put(tombstone.from.duplicate());
+            if (tombstone.to == null) {
+                buffer.putInt(NO_UPPER_BOUND);
+            } else {
+                buffer.putInt(tombstone.to.remaining()).put(tombstone.to.duplicate());
+            }
+        }
+    }
+
+    @NotNull
+    static List<RangeTombstone> readFrom(@NotNull final ByteBuffer buffer) {
+        final int count = buffer.getInt();
+        final List<RangeTombstone> tombstones = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final long timestamp = buffer.getLong();
+            final ByteBuffer from = copy(buffer, buffer.getInt());
+            final int toSize = buffer.getInt();
+            final ByteBuffer to = toSize == NO_UPPER_BOUND ? null : copy(buffer, toSize);
+            tombstones.add(new RangeTombstone(from, to, timestamp));
+        }
+        return tombstones;
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer from, final int size) {
+        final ByteBuffer result = ByteBuffer.allocate(size).put(from.duplicate().limit(from.position() + size)).flip();
+        from.position(from.position() + size);
+        return result;
+    }
+}
@@ -3,9 +3,12 @@ package ru.mail.polis.pokrovskiy;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileVisitOption;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
@@ -14,27 +17,205 @@ import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.EnumSet;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/** Таблица на диске. Записанная таблица открывается сразу, а таблица из манифеста знает из его описания
+ * уровень, поколения, размер, диапазон ключей и удаления диапазонов и открывает файл при первом чтении данных.
+ */
 public final class STable implements Comparable<STable> {
+    static final long MAGIC = 0x4C534D2D44422D31L;
+    static final int VERSION = 3;
+    static final int TRAILER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES;
+    static final byte META_BLOOM = 1;
+    static final byte META_BLOCK_INDEX = 3;
+    static final byte META_LEVEL = 4;
+    static final byte META_KEY_RANGE = 5;
+    static final byte META_DATA_GENERATION = 6;
+    static final byte META_RANGE_TOMBSTONES = 7;
+    static final byte META_MAX_TIMESTAMP = 8;
+    static final byte META_KEY_COUNT = 9;
     private static final String EXTENSION = ".data";
     private static final String PREFIX = "LSM-DB-GEN-";
+    private static final int LEGACY_VERSION = 1;
+    private static final int UNPREFIXED_VERSION = 2;
+    private static final byte META_INDEX = 2;
+    private static final long LEVEL_STRIDE = 1L << 48;
+    private static final int NO_KEY = -1;
+    private static final int MIN_CELL_SIZE = 8;
     private final long generation;
-    private final int rowCount;
-    private final FileChannel channel;
     private final Path file;
-
-    private STable(@NotNull final Path file, @NotNull final Long generation) throws IOException {
-        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+    private final Config config;
+    private final BlockCache blockCache;
+    private final Statistics statistics;
+    private final long size;
+    private final AtomicInteger references = new AtomicInteger();
+    private volatile boolean obsolete;
+    @Nullable
+    private volatile TableReader reader;
+    @Nullable
+    private TableFile data;
+    @Nullable
+    private BloomFilter bloomFilter;
+    private int level;
+    private long dataGeneration;
+    @Nullable
+    private ByteBuffer minKey;
+    @Nullable
+    private ByteBuffer maxKey;
+    private List<RangeTombstone> rangeTombstones = List.of();
+    private long maxTimestamp = -1;
+    private long keyCount = -1;
+
+    private STable(@NotNull final Path file,
+                   @NotNull final Long generation,
+                   @NotNull final Config config,
+                   @NotNull final BlockCache blockCache,
+                   @NotNull final Statistics statistics) throws IOException {
         this.generation = generation;
-        this.rowCount = getRowCount();
+        this.dataGeneration = generation;
         this.file = file;
+        this.config = config;
+        this.blockCache = blockCache;
+        this.statistics = statistics;
+        this.reader = open(true);
+        this.size = data.size();
+    }
+
+    private STable(@NotNull final Path file,
+                   @NotNull final ByteBuffer description,
+                   @NotNull final Config config,
+                   @NotNull final BlockCache blockCache,
+                   @NotNull final Statistics statistics) {
+        this.file = file;
+        this.config = config;
+        this.blockCache = blockCache;
+        this.statistics = statistics;
+        this.generation = description.getLong();
+        this.level = description.getInt();
+        this.dataGeneration = description.getLong();
+        this.maxTimestamp = description.getLong();
+        this.size = description.getLong();
+        this.minKey = readKey(description);
+        this.maxKey = readKey(description);
+        this.rangeTombstones = RangeTombstone.readFrom(description);
+    }
+
+    /** Открывает файл таблицы.
+     * @param describe - читать ли описание таблицы из заголовка; у таблицы из манифеста оно уже известно
+     */
+    @NotNull
+    private TableReader open(final boolean describe) throws IOException {
+        data = TableFile.open(file, config);
+        try {
+            final TableReader result = openReader(describe);
+            statistics.tableOpened();
+            return result;
+        } catch (IOException | RuntimeException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    /** Читатель таблицы; таблица из манифеста открывается при первом вызове.
+     */
+    @NotNull
+    private TableReader reader() throws IOException {
+        TableReader current = reader;
+        if (current == null) {
+            synchronized (this) {
+                current = reader;
+                if (current == null) {
+                    current = open(false);
+                    reader = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /** Разбирает заголовок в конце файла и выбирает формат.
+     * Файлы без заголовка и файлы версии 1 читаются в старом построчном формате.
+     */
+    @NotNull
+    private TableReader openReader(final boolean describe) throws IOException {
+        final long size = data.size();
+        if (size < TRAILER_SIZE) {
+            return new LegacyTableReader(data, size, null, generation, config);
+        }
+        final ByteBuffer trailer = data.read(size - TRAILER_SIZE, TRAILER_SIZE);
+        final int version = trailer.getInt();
+        final int metaLength = trailer.getInt();
+        if (trailer.getLong() != MAGIC) {
+            return new LegacyTableReader(data, size, null, generation, config);
+        }
+        if (version < LEGACY_VERSION || version > VERSION) {
+            throw new IOException("Unsupported table format " + version + " in " + file);
+        }
+        final long metaStart = size - TRAILER_SIZE - metaLength;
+        final ByteBuffer meta = data.read(metaStart, metaLength);
+        SparseIndex sparseIndex = null;
+        BlockIndex blockIndex = null;
+        while (meta.hasRemaining()) {
+            final byte tag = meta.get();
+            final int length = meta.getInt();
+            final long sectionStart = metaStart + meta.position();
+            final ByteBuffer section = meta.slice().limit(length);
+            meta.position(meta.position() + length);
+            if (tag == META_BLOOM) {
+                bloomFilter = BloomFilter.readFrom(section);
+            } else if (tag == META_INDEX) {
+                sparseIndex = SparseIndex.readFrom(section);
+            } else if (tag == META_BLOCK_INDEX) {
+                blockIndex = BlockIndex.readFrom(section, data, sectionStart);
+            } else if (tag == META_KEY_COUNT) {
+                keyCount = section.getLong();
+            } else if (describe) {
+                describe(tag, section);
+            }
+        }
+        if (version == LEGACY_VERSION) {
+            return new LegacyTableReader(data, metaStart, sparseIndex, generation, config);
+        }
+        if (blockIndex == null) {
+            throw new IOException("No block index in " + file);
+        }
+        return new BlockTableReader(data, blockIndex, generation, getRank(), version > UNPREFIXED_VERSION, blockCache);
+    }
+
+    private void describe(final byte tag, @NotNull final ByteBuffer section) {
+        if (tag == META_LEVEL) {
+            level = section.getInt();
+        } else if (tag == META_RANGE_TOMBSTONES) {
+            rangeTombstones = RangeTombstone.readFrom(section);
+        } else if (tag == META_MAX_TIMESTAMP) {
+            maxTimestamp = section.getLong();
+        } else if (tag == META_DATA_GENERATION) {
+            dataGeneration = section.getLong();
+        } else if (tag == META_KEY_RANGE) {
+            final int minSize = section.getInt();
+            minKey = copy(section.duplicate().limit(section.position() + minSize));
+            maxKey = copy(section.position(section.position() + minSize));
+        }
     }
 
     @NotNull
-    static List<STable> findTables(@NotNull final Path path) throws IOException {
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        return ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+    }
+
+    /** Открывает все файлы таблиц каталога; нужно только для каталога без манифеста.
+     */
+    @NotNull
+    static List<STable> findTables(@NotNull final Path path,
+                                   @NotNull final Config config,
+                                   @NotNull final BlockCache blockCache,
+                                   @NotNull final Statistics statistics) throws IOException {
         final List<STable> tables = new ArrayList<>();
         Files.walkFileTree(path, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
             @Override
@@ -42,7 +223,8 @@ public final class STable implements Comparable<STable> {
                     final Path file,
                     final BasicFileAttributes attrs) throws IOException {
                 if (file.getFileName().toString().endsWith(EXTENSION)) {
-                    tables.add(new STable(file, getVersionFromName(file.getFileName().toString())));
+                    final long generation = getVersionFromName(file.getFileName().toString());
+                    tables.add(new STable(file, generation, config, blockCache, statistics));
                 }
                 return FileVisitResult.CONTINUE;
             }
@@ -51,197 +233,285 @@ public final class STable implements Comparable<STable> {
         return tables;
     }
 
-    static void deleteOldTables(@NotNull final Path path, @NotNull final Path newFilePath) throws IOException {
-        Files.walkFileTree(path, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
-            @Override
-            public FileVisitResult visitFile(
-                    final Path file,
-                    final BasicFileAttributes attrs) throws IOException {
-                if (file.getFileName().toString().endsWith(EXTENSION) && !file.equals(newFilePath)) {
+    /** Таблица по описанию из манифеста; файл не открывается до первого чтения данных.
+     */
+    @NotNull
+    static STable described(@NotNull final Path path,
+                            @NotNull final ByteBuffer description,
+                            @NotNull final Config config,
+                            @NotNull final BlockCache blockCache,
+                            @NotNull final Statistics statistics) {
+        final long generation = describedGeneration(description);
+        return new STable(path.resolve(PREFIX + generation + EXTENSION), description.duplicate(), config, blockCache,
+                statistics);
+    }
+
+    static long describedGeneration(@NotNull final ByteBuffer description) {
+        return description.getLong(description.position());
+    }
+
+    /** Описание таблицы для манифеста: поколение, уровень, поколение данных, наибольший номер записи,
+     * размер файла, длины и ключи границ диапазона ключей (-1 без границы) и удаления диапазонов.
+     */
+    @NotNull
+    ByteBuffer describe() {
+        final int keysSize = Integer.BYTES * 2 + (minKey == null ? 0 : minKey.remaining())
+                + (maxKey == null ? 0 : maxKey.remaining());
+        final ByteBuffer description = ByteBuffer.allocate(Long.BYTES * 4 + Integer.BYTES + keysSize
+                + RangeTombstone.serializedSize(rangeTombstones));
+        description.putLong(generation).putInt(level).putLong(dataGeneration).putLong(maxTimestamp).putLong(size);
+        writeKey(description, minKey);
+        writeKey(description, maxKey);
+        RangeTombstone.writeTo(description, rangeTombstones);
+        return description.flip();
+    }
+
+    private static void writeKey(@NotNull final ByteBuffer buffer, @Nullable final ByteBuffer key) {
+        if (key == null) {
+            buffer.putInt(NO_KEY);
+        } else {
+            buffer.putInt(key.remaining()).put(key.duplicate());
+        }
+    }
+
+    @Nullable
+    private static ByteBuffer readKey(@NotNull final ByteBuffer buffer) {
+        final int keySize = buffer.getInt();
+        if (keySize == NO_KEY) {
+            return null;
+        }
+        final ByteBuffer key = copy(buffer.duplicate().limit(buffer.position() + keySize));
+        buffer.position(buffer.position() + keySize);
+        return key;
+    }
+
+    /** Удаляет файлы таблиц, которых нет среди tables: недописанные упавшим сбросом или компакцией
+     * и слитые компакцией, но не удалённые до падения. Каталог читается без обращения к атрибутам файлов,
+     * файлы таблиц из tables только проверяются на наличие.
+     * @return сколько файлов удалено
+     */
+    static int removeOrphans(@NotNull final Path path, @NotNull final List<STable> tables) throws IOException {
+        final Set<Long> live = new HashSet<>();
+        for (final STable table : tables) {
+            live.add(table.getGeneration());
+        }
+        int removed = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+            for (final Path file : files) {
+                final String name = file.getFileName().toString();
+                if (name.startsWith(PREFIX) && name.endsWith(EXTENSION) && !live.remove(getVersionFromName(name))) {
                     Files.delete(file);
+                    removed++;
                 }
-                return FileVisitResult.CONTINUE;
             }
-        });
+        }
+        if (!live.isEmpty()) {
+            throw new IOException("No files for tables " + live + " listed in manifest");
+        }
+        return removed;
     }
 
+    /** Записывает ячейки в новую таблицу.
+     * @param cellIterator - ячейки по возрастанию ключей
+     * @param expectedKeys - оценка сверху количества ячеек, по ней заводится Bloom-фильтр
+     * @param generation - поколение, оно же номер в имени файла
+     * @param level - уровень таблицы, 0 для сброшенных таблиц в памяти
+     * @param dataGeneration - поколение самых свежих данных таблицы, от него зависит её свежесть
+     * @param rangeTombstones - удаления диапазонов
+     * @param pathToFile - каталог хранилища
+     * @param config - настройки формата
+     * @param blockCache - общий кэш блоков
+     * @param statistics - счётчики хранилища
+     */
     @NotNull
     static STable writeTable(@NotNull final Iterator<Cell> cellIterator,
+                             final long expectedKeys,
                              @NotNull final Long generation,
-                             @NotNull final Path pathToFile) throws IOException {
+                             final int level,
+                             final long dataGeneration,
+                             @NotNull final Collection<RangeTombstone> rangeTombstones,
+                             @NotNull final Path pathToFile,
+                             @NotNull final Config config,
+                             @NotNull final BlockCache blockCache,
+                             @NotNull final Statistics statistics) throws IOException {
         final Path path = pathToFile.resolve(PREFIX + generation + EXTENSION);
         try (FileChannel channel = FileChannel.open(path,
                 StandardOpenOption.WRITE,
                 StandardOpenOption.CREATE_NEW)) {
-            final List<Integer> offsetList = new ArrayList<>();
+            final TableWriter writer = new TableWriter(channel, config, level, dataGeneration, expectedKeys);
+            writer.addRangeTombstones(rangeTombstones);
             while (cellIterator.hasNext()) {
-                final Cell cell = cellIterator.next();
-                offsetList.add((int) channel.position());
-
-                final long keySize = cell.getKey().limit();
-                channel.write(ByteBuffer.allocate(Long.BYTES).putLong(keySize).flip());
-                channel.write(ByteBuffer.allocate((int) keySize).put(cell.getKey()).flip());
-
-                final long timeStamp = cell.getValue().getTimestamp();
-                channel.write(ByteBuffer.allocate(Long.BYTES).putLong(timeStamp).flip());
-
-                final boolean tombstone = cell.getValue().isTombstone();
-                channel.write(ByteBuffer.allocate(Byte.BYTES).put((byte) (tombstone ? 1 : 0)).flip());
-
-                if (!tombstone) {
-                    final long valueSize = cell.getValue().getData().limit();
-                    channel.write(ByteBuffer.allocate(Long.BYTES).putLong(valueSize).flip());
-                    channel.write(ByteBuffer.allocate((int) valueSize).put(cell.getValue().getData()).flip());
-                }
-            }
-
-            final ByteBuffer offsetByteBuffer = ByteBuffer.allocate(Long.BYTES * offsetList.size());
-            for (final int offset : offsetList) {
-                offsetByteBuffer.putLong(offset);
+                writer.add(cellIterator.next());
             }
-
-            channel.write(offsetByteBuffer.flip());
-            final ByteBuffer rowCountBuffer = ByteBuffer.allocate(Integer.BYTES);
-            rowCountBuffer.putInt(offsetList.size()).flip();
-            channel.write(rowCountBuffer);
-
-            return new STable(path, generation);
+            writer.finish();
+            channel.force(false);
         }
+        return new STable(path, generation, config, blockCache, statistics);
     }
 
-    @NotNull
-    private ByteBuffer getKey(final int index) throws IOException {
-        long offset = getOffset(index);
-
-        final ByteBuffer keySizeBuffer = ByteBuffer.allocate(Long.BYTES);
-        channel.read(keySizeBuffer, offset);
-        final long keySize = keySizeBuffer.rewind().getLong();
-
-        offset += Long.BYTES;
-
-        final ByteBuffer keyBuffer = ByteBuffer.allocate((int) keySize);
-        channel.read(keyBuffer, offset);
-        return keyBuffer.rewind();
+    /** Количество ключей таблицы. У таблиц, записанных до появления счётчика в метаданных, оценивается
+     * сверху по размеру файла: для фильтра результата слияния завышенная оценка лучше заниженной.
+     */
+    long estimateKeyCount() throws IOException {
+        reader();
+        return keyCount >= 0 ? keyCount : size / MIN_CELL_SIZE;
     }
 
-    @NotNull
-    private Cell getCell(final int index) throws IOException {
-        long offset = getOffset(index);
-
-        final ByteBuffer keySizeBuffer = ByteBuffer.allocate(Long.BYTES);
-        channel.read(keySizeBuffer, offset);
-        final long keySize = keySizeBuffer.rewind().getLong();
-
-        offset += Long.BYTES;
+    boolean mightContain(@NotNull final ByteBuffer key) throws IOException {
+        reader();
+        return bloomFilter == null || bloomFilter.mightContain(key);
+    }
 
-        final ByteBuffer keyBuffer = ByteBuffer.allocate((int) keySize);
-        channel.read(keyBuffer, offset);
-        final ByteBuffer key = keyBuffer.rewind();
+    /** Лежит ли ключ в диапазоне ключей таблицы; без записанного диапазона считается, что лежит.
+     */
+    boolean inKeyRange(@NotNull final ByteBuffer key) {
+        return (minKey == null || minKey.compareTo(key) <= 0) && (maxKey == null || maxKey.compareTo(key) >= 0);
+    }
 
-        offset += keySize;
+    /** Может ли в таблице быть ключ от from включительно до to не включительно; to равный null не ограничивает.
+     */
+    boolean overlaps(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) {
+        return (maxKey == null || maxKey.compareTo(from) >= 0)
+                && (to == null || minKey == null || minKey.compareTo(to) < 0);
+    }
 
-        final ByteBuffer timeStampBuffer = ByteBuffer.allocate(Long.BYTES);
-        channel.read(timeStampBuffer, offset);
-        final long timeStamp = timeStampBuffer.rewind().getLong();
+    boolean hasBloomFilter() throws IOException {
+        reader();
+        return bloomFilter != null;
+    }
 
-        offset += Long.BYTES;
+    /** Память индексов таблицы; таблица, ещё не открытая для чтения, индексов в памяти не держит.
+     */
+    long indexSizeInBytes() {
+        final TableReader current = reader;
+        return current == null ? 0 : current.indexSizeInBytes();
+    }
 
-        final ByteBuffer tombstoneBuffer = ByteBuffer.allocate(Byte.BYTES);
-        channel.read(tombstoneBuffer, offset);
-        final boolean tombstone = tombstoneBuffer.rewind().get() != 0;
+    @Nullable
+    Cell get(@NotNull final ByteBuffer key) throws IOException {
+        return reader().get(key);
+    }
 
-        if (tombstone) {
-            return new Cell(key, new Value(null, timeStamp, true), getGeneration());
-        } else {
-            offset += Byte.BYTES;
+    /** Не больше count ключей, делящих таблицу на части близкого объёма.
+     */
+    @NotNull
+    List<ByteBuffer> splitKeys(final int count) throws IOException {
+        return reader().splitKeys(count);
+    }
 
-            final ByteBuffer valueSizeBuffer = ByteBuffer.allocate(Long.BYTES);
-            channel.read(valueSizeBuffer, offset);
-            final long valueSize = valueSizeBuffer.rewind().getLong();
+    /** Ячейки с ключами от from включительно до to не включительно; to равный null не ограничивает ключи.
+     */
+    @NotNull
+    Iterator<Cell> iteratorFromTable(@NotNull final ByteBuffer from, @Nullable final ByteBuffer to) throws IOException {
+        return reader().iterator(from, to);
+    }
 
-            offset += Long.BYTES;
+    private static long getVersionFromName(final String fileName) {
+        return Long.parseLong(Iterables.get(Splitter.on(PREFIX).split(fileName), 1).replaceAll(EXTENSION, ""));
+    }
 
-            final ByteBuffer valueBuffer = ByteBuffer.allocate((int) valueSize);
-            channel.read(valueBuffer, offset);
+    long getGeneration() {
+        return generation;
+    }
 
-            final ByteBuffer value = valueBuffer.rewind();
+    int getLevel() {
+        return level;
+    }
 
-            return new Cell(key, new Value(value, timeStamp, false), getGeneration());
-        }
+    /** Поколение самых свежих данных таблицы. У сброшенной таблицы и результата компакции
+     * в новое место совпадает с поколением файла, а слияние подряд идущих таблиц сохраняет поколение самой свежей.
+     */
+    long getDataGeneration() {
+        return dataGeneration;
     }
 
-    @NotNull
-    Iterator<Cell> iteratorFromTable(final ByteBuffer from) throws IOException {
-        return new Iterator<>() {
-            private int position = findIndex(from, 0, rowCount - 1);
+    /** Свежесть данных таблицы: на нулевом уровне новее таблица с большим поколением данных,
+     * а любая таблица уровня старше любой таблицы предыдущего уровня.
+     * Ячейки таблицы несут её в качестве поколения, так что слияние предпочитает более свежую.
+     */
+    long getRank() {
+        return dataGeneration - level * LEVEL_STRIDE;
+    }
 
-            @Override
-            public boolean hasNext() {
-                return position < rowCount;
+    /** Наибольший номер записи в таблице. Таблицы, записанные до появления номеров, его не хранят,
+     * а в ячейках и удалениях диапазонов у них время записи в миллисекундах. Для таких таблиц и для пустых
+     * значение находится однократным чтением всей таблицы и дальше попадает в описание для манифеста.
+     */
+    synchronized long getMaxTimestamp() throws IOException {
+        if (maxTimestamp < 0) {
+            long max = 0;
+            for (final RangeTombstone range : rangeTombstones) {
+                max = Math.max(max, range.getTimestamp());
             }
-
-            @Override
-            public Cell next() {
-                try {
-                    return getCell(position++);
-                } catch (IOException e) {
-                    return null;
-                }
+            final Iterator<Cell> cells = iteratorFromTable(ByteBuffer.allocate(0), null);
+            while (cells.hasNext()) {
+                max = Math.max(max, cells.next().getValue().getTimestamp());
             }
-        };
+            maxTimestamp = max;
+        }
+        return maxTimestamp;
     }
 
-    private int getRowCount() throws IOException {
-        final ByteBuffer rowCountBuffer = ByteBuffer.allocate(Integer.BYTES);
-        final long rowCountOff = channel.size() - Integer.BYTES;
-        channel.read(rowCountBuffer, rowCountOff);
-        return rowCountBuffer.rewind().getInt();
+    /** Удаления диапазонов, записанные в таблице.
+     */
+    @NotNull
+    List<RangeTombstone> getRangeTombstones() {
+        return rangeTombstones;
     }
 
-    private long getOffset(final int index) throws IOException {
-        final ByteBuffer offsetBuffer = ByteBuffer.allocate(Long.BYTES);
-        final long offsetOff = channel.size() - Integer.BYTES - Long.BYTES * (long) (rowCount - index);
-        channel.read(offsetBuffer, offsetOff);
-        return offsetBuffer.rewind().getLong();
+    /** Наименьший ключ таблицы или её удалённых диапазонов, null, если диапазон не записан в файле.
+     */
+    @Nullable
+    ByteBuffer getMinKey() {
+        return minKey == null ? null : minKey.duplicate();
     }
 
-    private static long getVersionFromName(final String fileName) {
-        return Long.parseLong(Iterables.get(Splitter.on(PREFIX).split(fileName), 1).replaceAll(EXTENSION, ""));
+    /** Наибольший ключ таблицы или конец её удалённых диапазонов, null, если диапазон не записан в файле.
+     */
+    @Nullable
+    ByteBuffer getMaxKey() {
+        return maxKey == null ? null : maxKey.duplicate();
     }
 
-    private int findIndex(final ByteBuffer from, final int left, final int right) throws IOException {
-        int curLeft = left;
-        int curRight = right;
-
-        while (curLeft <= curRight) {
-            final int mid = (curLeft + curRight) / 2;
-
-            final ByteBuffer midKey = getKey(mid);
+    long sizeInBytes() {
+        return size;
+    }
 
-            final int compare = midKey.compareTo(from);
+    /** Сравнивает по свежести: более старые таблицы раньше.
+     */
+    @Override
+    public int compareTo(@NotNull final STable table) {
+        return Long.compare(getRank(), table.getRank());
+    }
 
-            if (compare < 0) {
-                curLeft = mid + 1;
-            } else if (compare > 0) {
-                curRight = mid - 1;
-            } else {
-                return mid;
-            }
+    synchronized void close() throws IOException {
+        if (data != null) {
+            data.close();
         }
-        return curLeft;
     }
 
-    private long getGeneration() {
-        return generation;
+    void retain() {
+        references.incrementAndGet();
     }
 
-    @Override
-    public int compareTo(@NotNull final STable table) {
-        return Long.compare(generation, table.getGeneration());
+    /** Отпускает ссылку набора таблиц. Последняя ссылка закрывает файл,
+     * а если таблица уже заменена компакцией, ещё и удаляет его.
+     */
+    void release() throws IOException {
+        if (references.decrementAndGet() > 0) {
+            return;
+        }
+        close();
+        if (obsolete) {
+            blockCache.invalidate(generation);
+            Files.delete(file);
+        }
     }
 
-    void close() throws IOException {
-        channel.close();
+    /** Помечает таблицу, заменённую компакцией: файл удалится после освобождения последней ссылки.
+     */
+    void markObsolete() {
+        obsolete = true;
     }
 
     public Path getFile() {
@@ -0,0 +1,93 @@
+package ru.mail.polis.pokrovskiy;
+
+import java.io.InterruptedIOException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/** Номера записей и снимков. Каждая запись или пакет получает следующий номер; снимок видит записи
+ * с номерами не больше своего и открывается, только когда все записи с такими номерами завершены.
+ * Номера открытых снимков нужны таблице в памяти, чтобы не выбрасывать версии, которые снимки ещё читают.
+ */
+final class Sequencer {
+    /** Номер чтения последних версий без снимка: такое чтение не ждёт незавершённых записей,
+     * не регистрируется и не удерживает старые версии в таблице в памяти.
+     */
+    static final long LATEST = Long.MAX_VALUE;
+
+    private final PriorityQueue<Long> completed = new PriorityQueue<>();
+    private final TreeMap<Long, Integer> snapshots = new TreeMap<>();
+    private long assigned;
+    private long visible;
+    private volatile long oldest = Long.MAX_VALUE;
+
+    /** Номера продолжаются после last.
+     */
+    Sequencer(final long last) {
+        this.assigned = last;
+        this.visible = last;
+    }
+
+    /** Номер следующей записи; по окончании записи, в том числе неудачной, нужно вызвать complete.
+     */
+    synchronized long next() {
+        return ++assigned;
+    }
+
+    /** Отмечает запись с номером sequence завершённой.
+     */
+    synchronized void complete(final long sequence) {
+        if (sequence != visible + 1) {
+            completed.add(sequence);
+            return;
+        }
+        visible = sequence;
+        while (!completed.isEmpty() && completed.peek() == visible + 1) {
+            visible = completed.poll();
+        }
+        notifyAll();
+    }
+
+    /** Открывает снимок всех выданных номеров, дождавшись завершения их записей.
+     * @return номер снимка, который нужно вернуть через release
+     */
+    long acquire() throws InterruptedIOException {
+        synchronized (this) {
+            final long sequence = assigned;
+            snapshots.merge(sequence, 1, Integer::sum);
+            oldest = snapshots.firstKey();
+            try {
+                while (visible < sequence) {
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                release(sequence);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while opening snapshot");
+            }
+            return sequence;
+        }
+    }
+
+    /** Ещё одна ссылка на открытый снимок sequence.
+     */
+    synchronized void retain(final long sequence) {
+        snapshots.merge(sequence, 1, Integer::sum);
+        oldest = snapshots.firstKey();
+    }
+
+    /** Отпускает ссылку на снимок sequence; для {@link #LATEST} ничего не делает.
+     */
+    synchronized void release(final long sequence) {
+        if (sequence == LATEST) {
+            return;
+        }
+        snapshots.computeIfPresent(sequence, (key, count) -> count == 1 ? null : count - 1);
+        oldest = snapshots.isEmpty() ? Long.MAX_VALUE : snapshots.firstKey();
+    }
+
+    /** Номер самого старого открытого снимка или Long.MAX_VALUE, если снимков нет.
+     */
+    long oldestSnapshot() {
+        return oldest;
+    }
+}
@@ -0,0 +1,70 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Выбор таблиц для компакции по размерам.
+ * Таблицы идут от старых данных к свежим и делятся на ярусы: подряд идущие таблицы, объём каждой из которых
+ * отличается от среднего по ярусу не больше чем в полтора раза; таблицы не больше таблицы в памяти,
+ * то есть свежие сбросы, попадают в один ярус.
+ * Сливаются только подряд идущие таблицы, поэтому результат может занять их место по свежести.
+ */
+final class SizeTieredCompaction {
+    private static final double TIER_LOW = 0.5;
+    private static final double TIER_HIGH = 1.5;
+    private static final int MAX_TABLES = 32;
+
+    private final int threshold;
+    private final long smallTableSize;
+
+    SizeTieredCompaction(@NotNull final Config config, final long memTableSize) {
+        this.threshold = config.getTierThreshold();
+        this.smallTableSize = memTableSize;
+    }
+
+    /** Самые старые таблицы яруса с наименьшим средним объёмом среди набравших порог, или null.
+     * @param tables - таблицы от старых данных к свежим
+     */
+    @Nullable
+    List<STable> pick(@NotNull final List<STable> tables) {
+        final List<List<STable>> tiers = new ArrayList<>();
+        List<STable> tier = null;
+        long tierSize = 0;
+        for (final STable table : tables) {
+            final long size = table.sizeInBytes();
+            if (tier == null || !fits(size, tierSize / tier.size())) {
+                tier = new ArrayList<>();
+                tiers.add(tier);
+                tierSize = 0;
+            }
+            tier.add(table);
+            tierSize += size;
+        }
+        List<STable> best = null;
+        long bestAverage = Long.MAX_VALUE;
+        for (final List<STable> candidate : tiers) {
+            if (candidate.size() < threshold) {
+                continue;
+            }
+            long size = 0;
+            for (final STable table : candidate) {
+                size += table.sizeInBytes();
+            }
+            if (size / candidate.size() < bestAverage) {
+                best = candidate;
+                bestAverage = size / candidate.size();
+            }
+        }
+        return best == null ? null : best.subList(0, Math.min(best.size(), MAX_TABLES));
+    }
+
+    private boolean fits(final long size, final long average) {
+        if (size <= smallTableSize && average <= smallTableSize) {
+            return true;
+        }
+        return size >= average * TIER_LOW && size <= average * TIER_HIGH;
+    }
+}
@@ -0,0 +1,91 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/** Итератор по набору таблиц и снимку, на которых он открыт. Набор и номер снимка удерживаются,
+ * пока итератор не дочитан до конца или не закрыт; брошенный итератор отпускает их после сборки мусора.
+ * Пока идёт чтение, итератор остаётся достижимым, иначе сборщик мог бы отпустить таблицы посреди вызова.
+ */
+final class SnapshotIterator implements Iterator<Cell>, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(SnapshotIterator.class);
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final Iterator<Cell> delegate;
+    private final Cleaner.Cleanable cleanable;
+    private boolean closed;
+
+    SnapshotIterator(@NotNull final Iterator<Cell> delegate,
+                     @NotNull final TableSet tableSet,
+                     @NotNull final Sequencer sequencer,
+                     final long sequence) {
+        this.delegate = delegate;
+        this.cleanable = CLEANER.register(this, new Release(tableSet, sequencer, sequence));
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            if (closed) {
+                return false;
+            }
+            if (delegate.hasNext()) {
+                return true;
+            }
+            close();
+            return false;
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    @Override
+    public Cell next() {
+        try {
+            if (closed) {
+                throw new NoSuchElementException("Iterator is closed");
+            }
+            return delegate.next();
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    /** Отпускает набор таблиц и снимок, не дожидаясь конца итерации.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        cleanable.clean();
+    }
+
+    private static final class Release implements Runnable {
+        private final TableSet tableSet;
+        private final Sequencer sequencer;
+        private final long sequence;
+
+        Release(@NotNull final TableSet tableSet, @NotNull final Sequencer sequencer, final long sequence) {
+            this.tableSet = tableSet;
+            this.sequencer = sequencer;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            sequencer.release(sequence);
+            try {
+                tableSet.release();
+            } catch (IOException e) {
+                log.warn("Can't release tables", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+final class SparseIndex {
+    private static final int MAX_KEY_SIZE = 4096;
+    private final int interval;
+    private final byte[] keys;
+    private final int[] starts;
+    private final int count;
+
+    private SparseIndex(final int interval, @NotNull final byte[] keys, @NotNull final int[] starts, final int count) {
+        this.interval = interval;
+        this.keys = keys;
+        this.starts = starts;
+        this.count = count;
+    }
+
+    int getInterval() {
+        return interval;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    @NotNull
+    ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(keys, starts[index], starts[index + 1] - starts[index]).slice();
+    }
+
+    /** Номер последнего ключа выборки, не превосходящего key, или -1.
+     */
+    int floor(@NotNull final ByteBuffer key) {
+        int left = 0;
+        int right = count - 1;
+        while (left <= right) {
+            final int mid = (left + right) >>> 1;
+            final int compare = compare(mid, key);
+            if (compare < 0) {
+                left = mid + 1;
+            } else if (compare > 0) {
+                right = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return right;
+    }
+
+    private int compare(final int index, @NotNull final ByteBuffer key) {
+        final int from = starts[index];
+        final int length = starts[index + 1] - from;
+        final int keyLength = key.remaining();
+        final int common = Math.min(length, keyLength);
+        for (int i = 0; i < common; i++) {
+            final int compare = Byte.compare(keys[from + i], key.get(key.position() + i));
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return length - keyLength;
+    }
+
+    long sizeInBytes() {
+        return keys.length + (long) starts.length * Integer.BYTES;
+    }
+
+    int serializedSize() {
+        return Integer.BYTES * 2 + Integer.BYTES * count + starts[count];
+    }
+
+    void writeTo(@NotNull final ByteBuffer buffer) {
+        buffer.putInt(interval).putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(starts[i + 1] - starts[i]);
+            buffer.put(keys, starts[i], starts[i + 1] - starts[i]);
+        }
+    }
+
+    @NotNull
+    static SparseIndex readFrom(@NotNull final ByteBuffer buffer) {
+        final Builder builder = new Builder(buffer.getInt());
+        final int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            final int length = buffer.getInt();
+            builder.add(buffer.slice().limit(length));
+            buffer.position(buffer.position() + length);
+        }
+        return builder.build();
+    }
+
+    static final class Builder {
+        private final int interval;
+        private byte[] keys = new byte[Long.SIZE];
+        private int[] starts = new int[Long.SIZE];
+        private int count;
+        private boolean oversized;
+
+        Builder(final int interval) {
+            this.interval = interval;
+        }
+
+        int getInterval() {
+            return interval;
+        }
+
+        void add(@NotNull final ByteBuffer key) {
+            final int length = key.remaining();
+            if (oversized || length > MAX_KEY_SIZE) {
+                oversized = true;
+                return;
+            }
+            if (starts.length < count + 2) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            }
+            final int from = starts[count];
+            if (keys.length < from + length) {
+                keys = Arrays.copyOf(keys, Math.max(keys.length * 2, from + length));
+            }
+            key.duplicate().get(keys, from, length);
+            starts[++count] = from + length;
+        }
+
+        /** Индекс без ключей, если хотя бы один ключ выборки слишком велик, чтобы держать его в памяти.
+         */
+        @NotNull
+        SparseIndex build() {
+            if (oversized) {
+                return new SparseIndex(interval, new byte[0], new int[1], 0);
+            }
+            final int size = starts[count];
+            return new SparseIndex(interval, Arrays.copyOf(keys, size), Arrays.copyOf(starts, count + 1), count);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package ru.mail.polis.pokrovskiy;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public final class Statistics {
+    private final LongAdder bloomNegatives = new LongAdder();
+    private final LongAdder bloomTruePositives = new LongAdder();
+    private final LongAdder bloomFalsePositives = new LongAdder();
+    private final LongAdder blockCacheHits = new LongAdder();
+    private final LongAdder blockCacheMisses = new LongAdder();
+    private final LongAdder blockCacheEvictions = new LongAdder();
+    private final LongAdder[] levelBytesIn = adders(LeveledCompaction.MAX_LEVELS);
+    private final LongAdder[] levelBytesWritten = adders(LeveledCompaction.MAX_LEVELS);
+    private final LongAdder droppedTombstones = new LongAdder();
+    private final LongAdder keyRangeSkips = new LongAdder();
+    private final LongAdder tableOpens = new LongAdder();
+
+    Statistics() {
+    }
+
+    private static LongAdder[] adders(final int count) {
+        final LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    void bloomNegative() {
+        bloomNegatives.increment();
+    }
+
+    void bloomPositive(final boolean found) {
+        if (found) {
+            bloomTruePositives.increment();
+        } else {
+            bloomFalsePositives.increment();
+        }
+    }
+
+    void blockCacheHit() {
+        blockCacheHits.increment();
+    }
+
+    void blockCacheMiss() {
+        blockCacheMisses.increment();
+    }
+
+    void blockCacheEviction() {
+        blockCacheEvictions.increment();
+    }
+
+    void flushed(final long bytes) {
+        levelBytesIn[0].add(bytes);
+        levelBytesWritten[0].add(bytes);
+    }
+
+    /** Учитывает компакцию в уровень level.
+     * @param level - уровень результата
+     * @param movedBytes - сколько байт пришло с предыдущего уровня
+     * @param writtenBytes - сколько байт записано
+     */
+    void compacted(final int level, final long movedBytes, final long writtenBytes) {
+        levelBytesIn[level].add(movedBytes);
+        levelBytesWritten[level].add(writtenBytes);
+    }
+
+    void droppedTombstones(final long count) {
+        droppedTombstones.add(count);
+    }
+
+    void keyRangeSkip() {
+        keyRangeSkips.increment();
+    }
+
+    void tableOpened() {
+        tableOpens.increment();
+    }
+
+    /** Сколько раз Bloom-фильтр позволил не читать таблицу при точечном запросе.
+     */
+    public long getBloomNegatives() {
+        return bloomNegatives.sum();
+    }
+
+    /** Сколько раз фильтр пропустил запрос к таблице, в которой ключ действительно был.
+     */
+    public long getBloomTruePositives() {
+        return bloomTruePositives.sum();
+    }
+
+    /** Сколько раз фильтр пропустил запрос к таблице, в которой ключа не оказалось.
+     */
+    public long getBloomFalsePositives() {
+        return bloomFalsePositives.sum();
+    }
+
+    /** Сколько блоков таблиц нашлось в кэше блоков.
+     */
+    public long getBlockCacheHits() {
+        return blockCacheHits.sum();
+    }
+
+    /** Сколько блоков пришлось читать с диска и распаковывать из-за отсутствия в кэше.
+     * Несжатые блоки отображённых файлов в кэш не попадают и здесь не учитываются.
+     */
+    public long getBlockCacheMisses() {
+        return blockCacheMisses.sum();
+    }
+
+    /** Сколько блоков было вытеснено из кэша ради новых.
+     */
+    public long getBlockCacheEvictions() {
+        return blockCacheEvictions.sum();
+    }
+
+    /** Сколько байт таблиц пришло на уровень: на нулевой сбросом таблиц в памяти,
+     * на остальные компакцией с предыдущего уровня.
+     */
+    public long getLevelBytesIn(final int level) {
+        return levelBytesIn[level].sum();
+    }
+
+    /** Сколько байт таблиц записано на уровень сбросами и компакциями.
+     */
+    public long getLevelBytesWritten(final int level) {
+        return levelBytesWritten[level].sum();
+    }
+
+    /** Сколько надгробий компакции не стали переписывать, потому что им нечего было закрывать.
+     */
+    public long getDroppedTombstones() {
+        return droppedTombstones.sum();
+    }
+
+    /** Сколько байт записано на уровень на каждый пришедший на него байт.
+     */
+    public double getWriteAmplification(final int level) {
+        final long in = getLevelBytesIn(level);
+        return in == 0 ? 0 : (double) getLevelBytesWritten(level) / in;
+    }
+
+    /** Сколько байт таблиц записано всего на каждый байт, сброшенный из памяти.
+     */
+    public double getWriteAmplification() {
+        final long flushed = getLevelBytesIn(0);
+        if (flushed == 0) {
+            return 0;
+        }
+        long written = 0;
+        for (final LongAdder bytes : levelBytesWritten) {
+            written += bytes.sum();
+        }
+        return (double) written / flushed;
+    }
+
+    /** Сколько раз таблица не читалась, потому что запрошенные ключи вне её диапазона ключей.
+     */
+    public long getKeyRangeSkips() {
+        return keyRangeSkips.sum();
+    }
+
+    /** Сколько файлов таблиц открыто для чтения: записанные таблицы открываются сразу,
+     * а таблицы из манифеста — при первом обращении к их данным.
+     */
+    public long getTableOpens() {
+        return tableOpens.sum();
+    }
+}
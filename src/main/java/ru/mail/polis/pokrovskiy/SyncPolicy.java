@@ -0,0 +1,52 @@
+package ru.mail.polis.pokrovskiy;
+
+public final class SyncPolicy {
+    enum Mode {
+        WRITE,
+        INTERVAL,
+        BYTES
+    }
+
+    private final Mode mode;
+    private final long threshold;
+
+    private SyncPolicy(final Mode mode, final long threshold) {
+        this.mode = mode;
+        this.threshold = threshold;
+    }
+
+    /** Сброс журнала на диск после каждой записи.
+     * Одновременные писатели разделяют один fsync.
+     */
+    public static SyncPolicy perWrite() {
+        return new SyncPolicy(Mode.WRITE, 0);
+    }
+
+    /** Сброс журнала на диск фоновым потоком раз в заданный интервал.
+     * @param millis - интервал в миллисекундах
+     */
+    public static SyncPolicy everyMillis(final long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive: " + millis);
+        }
+        return new SyncPolicy(Mode.INTERVAL, millis);
+    }
+
+    /** Сброс журнала на диск после накопления заданного объёма несброшенных данных.
+     * @param bytes - объём в байтах
+     */
+    public static SyncPolicy everyBytes(final long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("Sync threshold must be positive: " + bytes);
+        }
+        return new SyncPolicy(Mode.BYTES, bytes);
+    }
+
+    Mode getMode() {
+        return mode;
+    }
+
+    long getThreshold() {
+        return threshold;
+    }
+}
@@ -0,0 +1,31 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+interface TableFile extends Closeable {
+    long size();
+
+    /** Отдаёт ли {@link #read} срезы отображения файла, а не прочитанные копии.
+     */
+    boolean isMapped();
+
+    /** Возвращает length байт начиная с offset.
+     * Буфер может оказаться срезом отображённого файла и действителен до {@link #close()}.
+     */
+    @NotNull
+    ByteBuffer read(long offset, int length) throws IOException;
+
+    long readLong(long offset) throws IOException;
+
+    int readInt(long offset) throws IOException;
+
+    @NotNull
+    static TableFile open(@NotNull final Path file, @NotNull final Config config) throws IOException {
+        return config.isMmap() ? MappedTableFile.open(file, config.getMmapSegmentSize()) : ChannelTableFile.open(file);
+    }
+}
@@ -0,0 +1,28 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+
+/** Чтение данных таблицы в конкретном формате файла.
+ */
+interface TableReader {
+    @Nullable
+    Cell get(@NotNull ByteBuffer key) throws IOException;
+
+    /** Ячейки с ключами от from включительно до to не включительно; to равный null не ограничивает ключи.
+     */
+    @NotNull
+    Iterator<Cell> iterator(@NotNull ByteBuffer from, @Nullable ByteBuffer to) throws IOException;
+
+    long indexSizeInBytes();
+
+    /** Не больше count ключей из индекса таблицы по возрастанию, делящих её на части близкого объёма.
+     */
+    @NotNull
+    List<ByteBuffer> splitKeys(int count) throws IOException;
+}
@@ -0,0 +1,149 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Неизменяемый набор таблиц хранилища: текущая таблица в памяти, таблицы в очереди на сброс
+ * и таблицы на диске от старых данных к свежим. Изменения создают новый набор.
+ * Набор держит ссылки на свои таблицы на диске. Одну ссылку на набор держит хранилище, пока набор текущий,
+ * остальные держат открытые на нём чтения; с последней ссылкой набор отпускает таблицы.
+ */
+final class TableSet {
+    private final MemoryTable memTable;
+    private final List<MemoryTable> flushing;
+    private final List<STable> tables;
+    private final List<RangeTombstone> rangeTombstones = new ArrayList<>();
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    TableSet(@NotNull final MemoryTable memTable,
+             @NotNull final List<MemoryTable> flushing,
+             @NotNull final List<STable> tables) {
+        this.memTable = memTable;
+        this.flushing = Collections.unmodifiableList(flushing);
+        this.tables = Collections.unmodifiableList(tables);
+        for (final STable table : tables) {
+            table.retain();
+            rangeTombstones.addAll(table.getRangeTombstones());
+        }
+        for (final MemoryTable table : flushing) {
+            rangeTombstones.addAll(table.getRangeTombstones());
+        }
+    }
+
+    /** Берёт ссылку на набор, если он ещё не освобождён.
+     */
+    boolean tryRetain() {
+        while (true) {
+            final int current = references.get();
+            if (current == 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /** Отпускает ссылку на набор, с последней ссылкой отпускает таблицы на диске.
+     */
+    void release() throws IOException {
+        if (references.decrementAndGet() > 0) {
+            return;
+        }
+        IOException failure = null;
+        for (final STable table : tables) {
+            try {
+                table.release();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @NotNull
+    MemoryTable getMemTable() {
+        return memTable;
+    }
+
+    @NotNull
+    List<MemoryTable> getFlushing() {
+        return flushing;
+    }
+
+    @NotNull
+    List<STable> getTables() {
+        return tables;
+    }
+
+    /** Удаления диапазонов всех таблиц набора, видимые снимку sequence. Таблицы, кроме текущей в памяти,
+     * дописаны до открытия любого снимка на этом наборе, поэтому номер проверяется только у текущей.
+     */
+    @NotNull
+    List<RangeTombstone> getRangeTombstones(final long sequence) {
+        final List<RangeTombstone> result = new ArrayList<>(rangeTombstones);
+        for (final RangeTombstone tombstone : memTable.getRangeTombstones()) {
+            if (tombstone.getTimestamp() <= sequence) {
+                result.add(tombstone);
+            }
+        }
+        return result;
+    }
+
+    /** Закрыта ли запись key, сделанная в момент timestamp, удалением диапазона, видимым снимку sequence.
+     */
+    boolean isRangeDeleted(@NotNull final ByteBuffer key, final long timestamp, final long sequence) {
+        if (RangeTombstone.covers(rangeTombstones, key, timestamp)) {
+            return true;
+        }
+        for (final RangeTombstone tombstone : memTable.getRangeTombstones()) {
+            if (tombstone.getTimestamp() <= sequence && tombstone.covers(key, timestamp)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Набор, в котором текущая таблица в памяти ожидает сброса, а записи идут в next.
+     */
+    @NotNull
+    TableSet rotate(@NotNull final MemoryTable next) {
+        final List<MemoryTable> queue = new ArrayList<>(flushing);
+        if (!memTable.isEmpty()) {
+            queue.add(memTable);
+        }
+        return new TableSet(next, queue, tables);
+    }
+
+    @NotNull
+    TableSet flushed(@NotNull final MemoryTable flushed, @NotNull final STable table) {
+        final List<MemoryTable> queue = new ArrayList<>(flushing);
+        queue.remove(flushed);
+        final List<STable> result = new ArrayList<>(tables);
+        result.add(table);
+        Collections.sort(result);
+        return new TableSet(memTable, queue, result);
+    }
+
+    @NotNull
+    TableSet compacted(@NotNull final Collection<STable> replaced, @NotNull final Collection<STable> added) {
+        final List<STable> result = new ArrayList<>(tables);
+        result.removeAll(replaced);
+        result.addAll(added);
+        Collections.sort(result);
+        return new TableSet(memTable, flushing, result);
+    }
+}
@@ -0,0 +1,293 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/** Пишет таблицу блоками через один буфер, чтобы сброс и компакция были крупными последовательными записями.
+ */
+final class TableWriter {
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int MAX_KEY_RANGE_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final Config config;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final BlockCodec codec;
+    private final int level;
+    private final long dataGeneration;
+    private long position;
+
+    private ByteBuffer block;
+    private int[] restarts = new int[INITIAL_CAPACITY];
+    private int restartCount;
+    private int entries;
+    private ByteBuffer firstKey;
+    private ByteBuffer lastKey;
+    private long maxTimestamp = -1;
+
+    private long[] blockOffsets = new long[INITIAL_CAPACITY];
+    private int[] separatorStarts = new int[INITIAL_CAPACITY];
+    private ByteBuffer separators = ByteBuffer.allocate(INITIAL_CAPACITY);
+    private int blocks;
+
+    @Nullable
+    private final BloomFilter filter;
+    private long count;
+
+    private final List<RangeTombstone> rangeTombstones = new ArrayList<>();
+
+    /** Писатель таблицы в channel.
+     * @param expectedKeys - оценка сверху количества ключей, по ней заводится Bloom-фильтр
+     */
+    TableWriter(@NotNull final FileChannel channel,
+                @NotNull final Config config,
+                final int level,
+                final long dataGeneration,
+                final long expectedKeys) {
+        this.channel = channel;
+        this.config = config;
+        this.level = level;
+        this.dataGeneration = dataGeneration;
+        this.filter = config.getBloomBitsPerKey() > 0
+                ? BloomFilter.create(expectedKeys, config.getBloomBitsPerKey()) : null;
+        this.codec = new BlockCodec(config.getCompression());
+        this.block = ByteBuffer.allocate(config.getBlockSize() + INITIAL_CAPACITY);
+    }
+
+    void add(@NotNull final Cell cell) throws IOException {
+        final ByteBuffer key = cell.getKey();
+        if (entries > 0 && block.position() >= config.getBlockSize()) {
+            writeBlock(key);
+        }
+        if (filter != null) {
+            filter.add(key);
+        }
+        count++;
+
+        final Value value = cell.getValue();
+        final ByteBuffer data = value.getData();
+        final boolean restart = entries % config.getRestartInterval() == 0;
+        final int shared = restart ? 0 : commonPrefix(lastKey, key);
+        final int suffixSize = key.remaining() - shared;
+        int size = Varint.size(shared) + Varint.size(suffixSize) + suffixSize
+                + Varint.size(value.getTimestamp()) + Byte.BYTES;
+        if (!value.isTombstone()) {
+            size += Varint.size(data.remaining()) + data.remaining();
+        }
+        ensureBlockCapacity(size);
+        if (restart) {
+            if (restarts.length == restartCount) {
+                restarts = Arrays.copyOf(restarts, restartCount * 2);
+            }
+            restarts[restartCount++] = block.position();
+        }
+        entries++;
+        Varint.putLong(block, shared);
+        Varint.putLong(block, suffixSize);
+        block.put(key.duplicate().position(key.position() + shared));
+        Varint.putLong(block, value.getTimestamp());
+        if (value.isTombstone()) {
+            block.put(Block.TOMBSTONE);
+        } else {
+            block.put((byte) 0);
+            Varint.putLong(block, data.remaining());
+            block.put(data.duplicate());
+        }
+        if (firstKey == null) {
+            firstKey = key;
+        }
+        lastKey = key;
+        maxTimestamp = Math.max(maxTimestamp, value.getTimestamp());
+    }
+
+    /** Удаления диапазонов, которые попадут в метаданные таблицы.
+     */
+    void addRangeTombstones(@NotNull final Collection<RangeTombstone> tombstones) {
+        rangeTombstones.addAll(tombstones);
+        for (final RangeTombstone tombstone : tombstones) {
+            maxTimestamp = Math.max(maxTimestamp, tombstone.getTimestamp());
+        }
+    }
+
+    /** Дописывает последний блок, индекс, метаданные и заголовок формата.
+     * Кроме индекса и фильтра в метаданных хранится уровень таблицы, поколение её данных, наибольший номер записи,
+     * количество ключей, удаления диапазонов и диапазон ключей, если крайние ключи не слишком велики,
+     * чтобы держать их в памяти. Фильтр, заведённый по оценке количества ключей, ужимается под записанное.
+     * Диапазон ключей покрывает только записи: удаления диапазонов применяются ко всем таблицам набора,
+     * а широкое удаление, расширив диапазон, наложило бы таблицу уровня на соседние. Диапазон таблицы
+     * без записей складывается из её удалений диапазонов.
+     */
+    void finish() throws IOException {
+        if (entries > 0) {
+            writeBlock(null);
+        }
+        blockOffsets[blocks] = position;
+        final ByteBuffer keys = separators.duplicate().flip();
+        final int indexSize = BlockIndex.serializedSize(blocks, keys.remaining());
+        int metaLength = Byte.BYTES + Integer.BYTES + indexSize
+                + Byte.BYTES + Integer.BYTES + Integer.BYTES
+                + Byte.BYTES + Integer.BYTES + Long.BYTES
+                + Byte.BYTES + Integer.BYTES + Long.BYTES
+                + Byte.BYTES + Integer.BYTES + Long.BYTES;
+        ByteBuffer minKey = firstKey;
+        ByteBuffer maxKey = lastKey;
+        boolean bounded = true;
+        if (firstKey == null) {
+            for (final RangeTombstone tombstone : rangeTombstones) {
+                final ByteBuffer to = tombstone.getTo();
+                bounded &= to != null;
+                if (minKey == null || tombstone.getFrom().compareTo(minKey) < 0) {
+                    minKey = tombstone.getFrom();
+                }
+                if (to != null && (maxKey == null || to.compareTo(maxKey) > 0)) {
+                    maxKey = to;
+                }
+            }
+        }
+        final int rangeSize = minKey == null || maxKey == null ? 0
+                : Integer.BYTES + minKey.remaining() + maxKey.remaining();
+        final boolean writeRange = bounded && rangeSize > 0 && rangeSize <= MAX_KEY_RANGE_SIZE;
+        if (writeRange) {
+            metaLength += Byte.BYTES + Integer.BYTES + rangeSize;
+        }
+        final int tombstonesSize = RangeTombstone.serializedSize(rangeTombstones);
+        if (!rangeTombstones.isEmpty()) {
+            metaLength += Byte.BYTES + Integer.BYTES + tombstonesSize;
+        }
+        final BloomFilter bloom = filter == null ? null : filter.fold(count, config.getBloomBitsPerKey());
+        if (bloom != null) {
+            metaLength += Byte.BYTES + Integer.BYTES + bloom.sizeInBytes();
+        }
+        final ByteBuffer meta = ByteBuffer.allocate(metaLength + STable.TRAILER_SIZE);
+        meta.put(STable.META_BLOCK_INDEX).putInt(indexSize);
+        BlockIndex.writeTo(meta, blockOffsets, separatorStarts, blocks, keys);
+        meta.put(STable.META_LEVEL).putInt(Integer.BYTES).putInt(level);
+        meta.put(STable.META_DATA_GENERATION).putInt(Long.BYTES).putLong(dataGeneration);
+        meta.put(STable.META_MAX_TIMESTAMP).putInt(Long.BYTES).putLong(maxTimestamp);
+        meta.put(STable.META_KEY_COUNT).putInt(Long.BYTES).putLong(count);
+        if (writeRange) {
+            meta.put(STable.META_KEY_RANGE).putInt(rangeSize);
+            meta.putInt(minKey.remaining()).put(minKey.duplicate()).put(maxKey.duplicate());
+        }
+        if (!rangeTombstones.isEmpty()) {
+            meta.put(STable.META_RANGE_TOMBSTONES).putInt(tombstonesSize);
+            RangeTombstone.writeTo(meta, rangeTombstones);
+        }
+        if (bloom != null) {
+            meta.put(STable.META_BLOOM).putInt(bloom.sizeInBytes());
+            bloom.writeTo(meta);
+        }
+        meta.putInt(STable.VERSION).putInt(metaLength).putLong(STable.MAGIC).flip();
+        write(meta);
+        flushBuffer();
+        codec.close();
+    }
+
+    private void ensureBlockCapacity(final int size) {
+        final int trailer = Integer.BYTES * (restartCount + 2);
+        if (block.remaining() < size + trailer) {
+            final int capacity = block.position() + size + trailer;
+            block = ByteBuffer.allocate(Math.max(block.capacity() * 2, capacity)).put(block.flip());
+        }
+    }
+
+    private void writeBlock(@Nullable final ByteBuffer nextKey) throws IOException {
+        for (int i = 0; i < restartCount; i++) {
+            block.putInt(restarts[i]);
+        }
+        block.putInt(restartCount).flip();
+        if (blockOffsets.length == blocks + 1) {
+            blockOffsets = Arrays.copyOf(blockOffsets, blocks * 2);
+            separatorStarts = Arrays.copyOf(separatorStarts, blocks * 2);
+        }
+        blockOffsets[blocks] = position;
+        final ByteBuffer compressed = codec.compress(block);
+        if (compressed == null) {
+            write(block);
+            writeByte(Compression.NONE.getCodec());
+        } else {
+            write(compressed);
+            writeByte(codec.getCompression().getCodec());
+        }
+        block.clear();
+        entries = 0;
+        restartCount = 0;
+
+        final ByteBuffer separator = separator(lastKey, nextKey);
+        if (separators.remaining() < separator.remaining()) {
+            final int capacity = Math.max(separators.capacity() * 2, separators.position() + separator.remaining());
+            separators = ByteBuffer.allocate(capacity).put(separators.flip());
+        }
+        separators.put(separator);
+        separatorStarts[++blocks] = separators.position();
+    }
+
+    private void write(@NotNull final ByteBuffer buffer) throws IOException {
+        position += buffer.remaining();
+        if (buffer.remaining() > out.remaining()) {
+            flushBuffer();
+            if (buffer.remaining() > out.capacity()) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                return;
+            }
+        }
+        out.put(buffer);
+    }
+
+    private void writeByte(final byte value) throws IOException {
+        if (!out.hasRemaining()) {
+            flushBuffer();
+        }
+        out.put(value);
+        position++;
+    }
+
+    private void flushBuffer() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    private static int commonPrefix(@NotNull final ByteBuffer left, @NotNull final ByteBuffer right) {
+        final int limit = Math.min(left.remaining(), right.remaining());
+        int common = 0;
+        while (common < limit && left.get(left.position() + common) == right.get(right.position() + common)) {
+            common++;
+        }
+        return common;
+    }
+
+    /** Короткий ключ s, для которого last <= s < next (или просто last <= s, если next нет).
+     */
+    @NotNull
+    static ByteBuffer separator(@NotNull final ByteBuffer last, @Nullable final ByteBuffer next) {
+        final int lastSize = last.remaining();
+        final int common = next == null ? 0 : commonPrefix(last, next);
+        for (int i = common; i < lastSize; i++) {
+            final byte current = last.get(last.position() + i);
+            if (current == Byte.MAX_VALUE) {
+                continue;
+            }
+            if (i == common && next != null && current + 1 >= next.get(next.position() + common)) {
+                continue;
+            }
+            final ByteBuffer separator = ByteBuffer.allocate(i + 1);
+            separator.put(last.duplicate().limit(last.position() + i)).put((byte) (current + 1));
+            return separator.flip();
+        }
+        return last.duplicate();
+    }
+}
@@ -0,0 +1,107 @@
+package ru.mail.polis.pokrovskiy;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Сбор надгробий при компакции. Надгробие нужно, только пока оно закрывает ключ в таблице старее результата,
+ * не участвующей в слиянии; если ни в одной такой таблице ключа быть не может по диапазону ключей
+ * и Bloom-фильтру, надгробие не пишется. Удаления диапазонов сливаемых таблиц убирают закрытые ими ячейки,
+ * а сами переходят в результат, только если пересекаются с диапазоном ключей более старой таблицы.
+ */
+final class TombstoneFilter {
+    private final List<STable> older = new ArrayList<>();
+    private final List<RangeTombstone> ranges = new ArrayList<>();
+    private final List<RangeTombstone> retained = new ArrayList<>();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder covered = new LongAdder();
+
+    /** Фильтр для слияния sources. Старее результата считаются все таблицы вне слияния,
+     * старее самой свежей из сливаемых.
+     * @param tables - таблицы набора, на котором идёт компакция
+     * @param sources - сливаемые таблицы
+     */
+    TombstoneFilter(@NotNull final List<STable> tables, @NotNull final Collection<STable> sources) {
+        long newest = Long.MIN_VALUE;
+        for (final STable source : sources) {
+            newest = Math.max(newest, source.getRank());
+            ranges.addAll(source.getRangeTombstones());
+        }
+        for (final STable table : tables) {
+            if (table.getRank() < newest && !sources.contains(table)) {
+                older.add(table);
+            }
+        }
+        for (final RangeTombstone range : ranges) {
+            for (final STable table : older) {
+                if (range.overlaps(table.getMinKey(), table.getMaxKey())) {
+                    retained.add(range);
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Ячейки из cells без закрытых удалениями диапазонов и без надгробий, которым нечего закрывать.
+     */
+    @NotNull
+    Iterator<Cell> filter(@NotNull final Iterator<Cell> cells) {
+        return Iterators.filter(cells, cell -> {
+            if (!ranges.isEmpty() && RangeTombstone.covers(ranges, cell.getKey(), cell.getValue().getTimestamp())) {
+                covered.increment();
+                return false;
+            }
+            if (!cell.getValue().isTombstone() || mightBeShadowed(cell.getKey())) {
+                return true;
+            }
+            dropped.increment();
+            return false;
+        });
+    }
+
+    private boolean mightBeShadowed(@NotNull final ByteBuffer key) {
+        try {
+            for (final STable table : older) {
+                if (table.inKeyRange(key) && table.mightContain(key)) {
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return false;
+    }
+
+    /** Удаления диапазонов, которые нужно записать в результат.
+     */
+    @NotNull
+    List<RangeTombstone> getRetained() {
+        return retained;
+    }
+
+    /** Сколько надгробий отброшено.
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /** Сколько ячеек убрано как закрытые удалениями диапазонов.
+     */
+    long getCovered() {
+        return covered.sum();
+    }
+
+    /** Сколько удалений диапазонов не перешло в результат.
+     */
+    int getDroppedRanges() {
+        return ranges.size() - retained.size();
+    }
+}
@@ -3,21 +3,29 @@ package ru.mail.polis.pokrovskiy;
 import javax.annotation.Nullable;
 import java.nio.ByteBuffer;
 
+/** Значение ключа. Метка времени — номер записи из общей возрастающей последовательности: у разных записей
+ * она разная и задаёт их порядок. В таблице в памяти значение может ссылаться на предыдущие версии ключа,
+ * которые ещё читают открытые снимки.
+ */
 public class Value implements Comparable<Value> {
     private final long timestamp;
     private final ByteBuffer data;
     private final boolean isTombstone;
+    @Nullable
+    private final Value previous;
 
-    Value(@Nullable final ByteBuffer data, final boolean isTombstone) {
-        this.data = data;
-        this.timestamp = System.currentTimeMillis();
-        this.isTombstone = isTombstone;
+    Value(@Nullable final ByteBuffer data, final long timestamp, final boolean isTombstone) {
+        this(data, timestamp, isTombstone, null);
     }
 
-    Value(@Nullable final ByteBuffer data, final long timestamp, final boolean isTombstone) {
+    private Value(@Nullable final ByteBuffer data,
+                  final long timestamp,
+                  final boolean isTombstone,
+                  @Nullable final Value previous) {
         this.data = data;
         this.timestamp = timestamp;
         this.isTombstone = isTombstone;
+        this.previous = previous;
     }
 
     long getTimestamp() {
@@ -33,6 +41,49 @@ public class Value implements Comparable<Value> {
         return isTombstone;
     }
 
+    /** Это значение с предыдущими версиями previous.
+     */
+    Value withPrevious(@Nullable final Value previous) {
+        return previous == this.previous ? this : new Value(data, timestamp, isTombstone, previous);
+    }
+
+    /** Самая свежая версия с меткой не больше sequence или null, если все версии новее.
+     */
+    @Nullable
+    Value visibleAt(final long sequence) {
+        Value version = this;
+        while (version != null && version.timestamp > sequence) {
+            version = version.previous;
+        }
+        return version;
+    }
+
+    /** Версии, которые могут понадобиться снимкам с номерами от oldest: все новее oldest
+     * и самая свежая из остальных; null, если снимков нет.
+     */
+    @Nullable
+    Value retain(final long oldest) {
+        if (oldest == Long.MAX_VALUE) {
+            return null;
+        }
+        if (timestamp <= oldest) {
+            return withPrevious(null);
+        }
+        return withPrevious(previous == null ? null : previous.retain(oldest));
+    }
+
+    /** Размер данных этой и предыдущих версий.
+     */
+    long chainSize() {
+        long size = 0;
+        for (Value version = this; version != null; version = version.previous) {
+            if (!version.isTombstone && version.data != null) {
+                size += version.data.limit();
+            }
+        }
+        return size;
+    }
+
     @Override
     public int compareTo(final Value o) {
         return Long.compare(o.getTimestamp(), this.getTimestamp());
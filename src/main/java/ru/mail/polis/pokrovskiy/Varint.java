@@ -0,0 +1,54 @@
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+final class Varint {
+    private static final int MAX_SIZE = 10;
+    private static final int PAYLOAD_BITS = 7;
+    private static final int PAYLOAD_MASK = 0x7F;
+    private static final int CONTINUATION = 0x80;
+
+    private Varint() {
+    }
+
+    static int size(final long value) {
+        int size = 1;
+        long rest = value >>> PAYLOAD_BITS;
+        while (rest != 0) {
+            size++;
+            rest >>>= PAYLOAD_BITS;
+        }
+        return size;
+    }
+
+    static void putLong(@NotNull final ByteBuffer buffer, final long value) {
+        long rest = value;
+        while ((rest & ~PAYLOAD_MASK) != 0) {
+            buffer.put((byte) ((rest & PAYLOAD_MASK) | CONTINUATION));
+            rest >>>= PAYLOAD_BITS;
+        }
+        buffer.put((byte) rest);
+    }
+
+    static long getLong(@NotNull final ByteBuffer buffer) {
+        long result = 0;
+        for (int i = 0; i < MAX_SIZE; i++) {
+            final byte b = buffer.get();
+            result |= (long) (b & PAYLOAD_MASK) << (PAYLOAD_BITS * i);
+            if ((b & CONTINUATION) == 0) {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static int getInt(@NotNull final ByteBuffer buffer) {
+        final long value = getLong(buffer);
+        if (value < 0 || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Varint out of int range: " + value);
+        }
+        return (int) value;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.CompactionStyle;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Background compaction and compaction rate limiting in {@link MyDAO}.
+ */
+class BackgroundCompactionTest extends TestBase {
+    private static final long MEMTABLE_SIZE = 16 * 1024;
+    private static final int TRIGGER_TABLES = 4;
+
+    @Test
+    void flushesTriggerCompaction(@TempDir File data) throws IOException, InterruptedException {
+        final Config config = Config.defaults().withCompactionTriggerTables(TRIGGER_TABLES);
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, config)) {
+            for (int i = 0; i < 5000; i++) {
+                final ByteBuffer key = key(i % 1000);
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (dao.getTableLevels().size() > TRIGGER_TABLES && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(dao.getTableLevels().size() <= TRIGGER_TABLES, dao.getTableLevels().toString());
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    @Test
+    void backgroundLevelsCatchUp(@TempDir File data) throws IOException, InterruptedException {
+        final long baseSize = 16 * 1024;
+        final Config config = Config.defaults()
+                .withCompactionStyle(CompactionStyle.LEVELED)
+                .withLevelBaseSize(baseSize)
+                .withLevelMultiplier(4)
+                .withTargetFileSize(4 * 1024)
+                .withCompactionTriggerTables(1);
+        final Map<ByteBuffer, ByteBuffer> expected = new HashMap<>();
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, config)) {
+            for (int i = 0; i < 20_000; i++) {
+                final ByteBuffer key = key(i % 5000);
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            // Passes are short, so the last flush leaves more picks than one pass makes
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (!levelsFit(data, dao.getTableLevels(), baseSize) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(levelsFit(data, dao.getTableLevels(), baseSize), dao.getTableLevels().toString());
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+        }
+    }
+
+    /** Whether level 0 is empty and every other level is within its size.
+     */
+    private static boolean levelsFit(@NotNull final File data,
+                                     @NotNull final Map<Long, Integer> tableLevels,
+                                     final long baseSize) {
+        final Map<Integer, Long> sizes = new HashMap<>();
+        for (final Map.Entry<Long, Integer> table : tableLevels.entrySet()) {
+            final long size = new File(data, "LSM-DB-GEN-" + table.getKey() + ".data").length();
+            sizes.merge(table.getValue(), size, Long::sum);
+        }
+        if (sizes.containsKey(0)) {
+            return false;
+        }
+        for (final Map.Entry<Integer, Long> level : sizes.entrySet()) {
+            if (level.getValue() > baseSize * Math.pow(4, level.getKey() - 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    void rateLimitSlowsCompaction(@TempDir File data) throws IOException {
+        final long rate = 256 * 1024;
+        final Config config = Config.defaults().withCompactionRateLimit(rate);
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, config)) {
+            for (int i = 0; i < 2500; i++) {
+                dao.upsert(key(i), randomBuffer(100));
+            }
+            final long start = System.nanoTime();
+            dao.compact();
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsed >= 1000, "compaction took " + elapsed + " ms");
+            assertEquals(1, dao.getTableLevels().size());
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.Compression;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Memory tables of {@link MyDAO} flushed on a background thread: reads while tables are queued for flush,
+ * the limit on the flush queue and writes after a failed flush.
+ */
+class BackgroundFlushTest extends TestBase {
+    private static final int KEYS = 20_000;
+    private static final int BATCH = 1000;
+    private static final long MEMTABLE_SIZE = 64 * 1024;
+
+    @Test
+    void readsSeeTablesBeingFlushed(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, Config.defaults().withMaxFlushQueue(4))) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+                // Keys written a few tables ago are likely still in the flush queue
+                if (i % 100 == 0) {
+                    for (int j = Math.max(0, i - 2_000); j <= i; j += 50) {
+                        assertEquals(expected.get(key(j)), dao.get(key(j)));
+                    }
+                    assertEquals(i + 1, count(dao.iterator(key(0))));
+                }
+            }
+            assertContents(dao, expected, KEYS);
+        }
+    }
+
+    @Test
+    void flushQueueLimitsMemoryTables(@TempDir File data) throws IOException {
+        // Batches are applied faster than slow compressed flushes, so writers have to wait for the queue
+        final Config config = Config.defaults().withMaxFlushQueue(2).withCompression(Compression.DEFLATE);
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        int maxLogs = 0;
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, config)) {
+            for (int first = 0; first < KEYS; first += BATCH) {
+                final WriteBatch batch = new WriteBatch();
+                for (int i = first; i < first + BATCH; i++) {
+                    final ByteBuffer value = randomBuffer(100);
+                    batch.upsert(key(i), value);
+                    expected.put(key(i), value);
+                }
+                dao.apply(batch);
+                // Every memory table keeps its log until flushed: the current one and the queued ones
+                maxLogs = Math.max(maxLogs, logs(data));
+            }
+            assertEquals(3, maxLogs);
+            assertContents(dao, expected, KEYS);
+        }
+    }
+
+    @Test
+    void failedFlushRejectsLaterWrites(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        // The first memory table can't be flushed: its table file name is taken by a directory
+        final File blocker = new File(data, "LSM-DB-GEN-1.data");
+        final DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE);
+        assertTrue(blocker.mkdir());
+        ByteBuffer rejected = null;
+        for (int i = 0; i < KEYS && rejected == null; i++) {
+            final ByteBuffer value = randomBuffer(100);
+            try {
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            } catch (IOException e) {
+                rejected = key(i);
+            }
+        }
+        assertTrue(rejected != null);
+
+        // Accepted writes stay readable, including the table that failed to flush; the rejected one is not applied
+        assertContents(dao, expected, KEYS);
+        final ByteBuffer missing = rejected;
+        assertThrows(NoSuchElementException.class, () -> dao.get(missing));
+        assertThrows(IOException.class, () -> dao.upsert(missing, randomBuffer(100)));
+        assertThrows(IOException.class, () -> dao.remove(key(0)));
+        assertThrows(IOException.class, dao::close);
+
+        // Logs of tables that were not flushed are replayed on open
+        assertTrue(blocker.delete());
+        try (DAO reopened = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            assertContents(reopened, expected, KEYS);
+        }
+    }
+
+    private static int count(@NotNull final Iterator<Record> records) {
+        int count = 0;
+        while (records.hasNext()) {
+            records.next();
+            count++;
+        }
+        return count;
+    }
+
+    private static int logs(@NotNull final File data) throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(data.toPath(), "*.log")) {
+            for (final Path ignored : files) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
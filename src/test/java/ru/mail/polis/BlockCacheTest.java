@@ -0,0 +1,132 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.Compression;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+import ru.mail.polis.pokrovskiy.Statistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the shared block cache: counters, resistance to full scans and which blocks it keeps.
+ */
+class BlockCacheTest extends TestBase {
+    @Test
+    void hotBlockSurvivesScan(@TempDir File data) throws IOException {
+        final Config config = Config.defaults().withBlockCacheSize(64 * 1024).withCompression(Compression.LZ4);
+        final List<ByteBuffer> keys = new ArrayList<>();
+        final List<ByteBuffer> values = new ArrayList<>();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP / 62, config)) {
+            for (int i = 0; i < 2_000; i++) {
+                keys.add(randomKey());
+                values.add(compressibleValue(i));
+                dao.upsert(keys.get(i), values.get(i));
+            }
+            dao.compact();
+        }
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP / 62, config)) {
+            final Statistics statistics = dao.getStatistics();
+            final ByteBuffer hot = keys.get(0);
+            assertEquals(values.get(0), dao.get(hot));
+            assertEquals(1, statistics.getBlockCacheMisses());
+            assertEquals(values.get(0), dao.get(hot));
+            assertEquals(1, statistics.getBlockCacheHits());
+
+            // One pass over every block of the table
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            int count = 0;
+            while (records.hasNext()) {
+                records.next();
+                count++;
+            }
+            assertEquals(keys.size(), count);
+            assertTrue(statistics.getBlockCacheEvictions() > 0);
+
+            final long hits = statistics.getBlockCacheHits();
+            assertEquals(values.get(0), dao.get(hot));
+            assertEquals(hits + 1, statistics.getBlockCacheHits());
+        }
+    }
+
+    @Test
+    void uncompressedBlocksAreCached(@TempDir File data) throws IOException {
+        final Config config = Config.defaults().withCompression(Compression.NONE);
+        final List<ByteBuffer> keys = writeKeys(data, config);
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP / 62, config)) {
+            final Statistics statistics = dao.getStatistics();
+            assertEquals(compressibleValue(0), dao.get(keys.get(0)));
+            assertEquals(1, statistics.getBlockCacheMisses());
+            assertEquals(0, statistics.getBlockCacheHits());
+            assertEquals(compressibleValue(0), dao.get(keys.get(0)));
+            assertEquals(1, statistics.getBlockCacheMisses());
+            assertEquals(1, statistics.getBlockCacheHits());
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(compressibleValue(i), dao.get(keys.get(i)));
+            }
+        }
+    }
+
+    @Test
+    void mappedUncompressedBlocksBypassCache(@TempDir File data) throws IOException {
+        final Config config = Config.defaults().withCompression(Compression.NONE).withMmap(true);
+        final List<ByteBuffer> keys = writeKeys(data, config);
+
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP / 62, config)) {
+            for (int i = 0; i < keys.size(); i++) {
+                assertEquals(compressibleValue(i), dao.get(keys.get(i)));
+                assertEquals(compressibleValue(i), dao.get(keys.get(i)));
+            }
+            assertEquals(0, dao.getStatistics().getBlockCacheMisses());
+            assertEquals(0, dao.getStatistics().getBlockCacheHits());
+        }
+    }
+
+    @NotNull
+    private static List<ByteBuffer> writeKeys(@NotNull final File data, @NotNull final Config config)
+            throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP / 62, config)) {
+            for (int i = 0; i < 2_000; i++) {
+                keys.add(randomKey());
+                dao.upsert(keys.get(i), compressibleValue(i));
+            }
+            dao.compact();
+        }
+        return keys;
+    }
+
+    @NotNull
+    private static ByteBuffer compressibleValue(final int index) {
+        return ByteBuffer.wrap(String.format("value %06d ", index).repeat(80).getBytes(StandardCharsets.UTF_8));
+    }
+}
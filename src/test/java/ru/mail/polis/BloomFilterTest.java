@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.Compression;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+import ru.mail.polis.pokrovskiy.Statistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Bloom filters of disk tables in {@link MyDAO}: point lookups of absent keys skip tables without
+ * reading their blocks, and the false-positive rate matches the configured bits per key.
+ */
+class BloomFilterTest extends TestBase {
+    private static final int KEYS = 5_000;
+    private static final int LOOKUPS = 20_000;
+    private static final long MEMTABLE_SIZE = 16 * 1024 * 1024;
+    // Compressed blocks pass through the block cache, so its hits and misses count every block read
+    private static final Config CONFIG = Config.defaults().withCompression(Compression.LZ4);
+    // About 0.8% for 10 bits per key and 7 hash functions
+    private static final double MAX_FALSE_POSITIVE_RATE = 0.02;
+
+    @Test
+    void absentKeysReadNoBlocks(@TempDir File data) throws IOException {
+        final Set<ByteBuffer> keys = fill(data, CONFIG);
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, CONFIG)) {
+            final Statistics statistics = dao.getStatistics();
+            for (final ByteBuffer key : keys) {
+                assertEquals(ByteBuffer.allocate(100), dao.get(key));
+            }
+            assertEquals(KEYS, statistics.getBloomTruePositives());
+            assertEquals(0, statistics.getBloomNegatives());
+
+            final long truePositives = statistics.getBloomTruePositives();
+            final long rangeSkips = statistics.getKeyRangeSkips();
+            final long blocks = blocksRead(statistics);
+            int lookups = 0;
+            while (lookups < LOOKUPS) {
+                final ByteBuffer key = randomKey();
+                if (keys.contains(key)) {
+                    continue;
+                }
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                lookups++;
+            }
+            final long falsePositives = statistics.getBloomFalsePositives();
+            assertEquals(truePositives, statistics.getBloomTruePositives());
+            // A few random keys fall outside the key range of the table and skip it before the filter
+            final long skips = statistics.getKeyRangeSkips() - rangeSkips;
+            assertEquals(LOOKUPS, skips + statistics.getBloomNegatives() + falsePositives);
+            // Only lookups the filter let through may touch a block
+            assertTrue(blocksRead(statistics) - blocks <= falsePositives);
+            assertTrue(falsePositives <= LOOKUPS * MAX_FALSE_POSITIVE_RATE,
+                    "False positives: " + falsePositives + " of " + LOOKUPS);
+        }
+    }
+
+    @Test
+    void absentKeysReadBlocksWithoutFilter(@TempDir File data) throws IOException {
+        final Config config = CONFIG.withBloomBitsPerKey(0);
+        final Set<ByteBuffer> keys = fill(data, config);
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, config)) {
+            final Statistics statistics = dao.getStatistics();
+            int lookups = 0;
+            while (lookups < LOOKUPS) {
+                final ByteBuffer key = randomKey();
+                if (keys.contains(key)) {
+                    continue;
+                }
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                lookups++;
+            }
+            assertEquals(0, statistics.getBloomNegatives() + statistics.getBloomFalsePositives());
+            assertTrue(blocksRead(statistics) > LOOKUPS / 2);
+        }
+    }
+
+    @NotNull
+    private static Set<ByteBuffer> fill(@NotNull final File data, @NotNull final Config config) throws IOException {
+        final Set<ByteBuffer> keys = new HashSet<>();
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, config)) {
+            while (keys.size() < KEYS) {
+                final ByteBuffer key = randomKey();
+                keys.add(key);
+                dao.upsert(key, ByteBuffer.allocate(100));
+            }
+        }
+        return keys;
+    }
+
+    private static long blocksRead(@NotNull final Statistics statistics) {
+        return statistics.getBlockCacheHits() + statistics.getBlockCacheMisses();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hammers one {@link DAO} from several threads while memtables are flushed in the background.
+ */
+class ConcurrencyTest extends TestBase {
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 5_000;
+    private static final int OWN_KEYS = 200;
+    private static final int SHARED_KEYS = 16;
+    private static final long MEMTABLE_SIZE = 1024 * 1024;
+    private static final long SMALL_MEMTABLE_SIZE = 16 * 1024;
+
+    @Test
+    void linearizablePerKey(@TempDir File data) throws Exception {
+        final List<Map<ByteBuffer, ByteBuffer>> expected = new ArrayList<>();
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, Config.defaults())) {
+            final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                final List<Future<Map<ByteBuffer, ByteBuffer>>> futures = new ArrayList<>();
+                for (int i = 0; i < THREADS; i++) {
+                    final int thread = i;
+                    futures.add(executor.submit(() -> work(dao, thread)));
+                }
+                for (final Future<Map<ByteBuffer, ByteBuffer>> future : futures) {
+                    expected.add(future.get());
+                }
+            } catch (ExecutionException e) {
+                throw new AssertionError(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+            assertContents(dao, expected);
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertContents(dao, expected);
+        }
+    }
+
+    @Test
+    void iteratorSurvivesCompaction(@TempDir File data) throws Exception {
+        final int count = 1000;
+        try (DAO dao = new MyDAO(data.toPath(), SMALL_MEMTABLE_SIZE, Config.defaults())) {
+            for (int i = 0; i < count; i++) {
+                dao.upsert(orderedKey(i), value(0, i));
+            }
+            final Iterator<Record> records = dao.iterator(orderedKey(0));
+            for (int i = 0; i < count / 2; i++) {
+                assertEquals(orderedKey(i), records.next().getKey());
+            }
+            for (int round = 1; round <= 2; round++) {
+                for (int i = 0; i < count; i++) {
+                    dao.upsert(orderedKey(i), value(round, i));
+                }
+                dao.compact();
+            }
+            assertTrue(tableFiles(data) > 1);
+            for (int i = count / 2; i < count; i++) {
+                assertEquals(orderedKey(i), records.next().getKey());
+            }
+            assertFalse(records.hasNext());
+            assertEquals(1, tableFiles(data));
+            for (int i = 0; i < count; i++) {
+                assertEquals(value(2, i).getInt(Integer.BYTES), dao.get(orderedKey(i)).getInt(Integer.BYTES));
+            }
+        }
+    }
+
+    /**
+     * Mixes writes, reads and scans. Keys owned by the thread must read back exactly,
+     * a shared key must never return an older write of the reading thread.
+     */
+    @NotNull
+    private static Map<ByteBuffer, ByteBuffer> work(
+            @NotNull final DAO dao,
+            final int thread) throws IOException {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final Map<ByteBuffer, ByteBuffer> own = new HashMap<>();
+        final int[] lastShared = new int[SHARED_KEYS];
+        for (int op = 1; op <= OPERATIONS; op++) {
+            final int choice = random.nextInt(10);
+            if (choice < 4) {
+                final ByteBuffer key = key(thread, random.nextInt(OWN_KEYS));
+                final ByteBuffer value = value(thread, op);
+                dao.upsert(key, value);
+                own.put(key, value);
+                assertEquals(value, dao.get(key));
+            } else if (choice < 5) {
+                final ByteBuffer key = key(thread, random.nextInt(OWN_KEYS));
+                dao.remove(key);
+                own.remove(key);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else if (choice < 8) {
+                final int shared = random.nextInt(SHARED_KEYS);
+                final ByteBuffer key = key(THREADS, shared);
+                if (random.nextBoolean()) {
+                    dao.upsert(key, value(thread, op));
+                    lastShared[shared] = op;
+                }
+                if (lastShared[shared] > 0) {
+                    final ByteBuffer value = dao.get(key);
+                    if (value.getInt(0) == thread) {
+                        assertEquals(lastShared[shared], value.getInt(Integer.BYTES));
+                    }
+                }
+            } else {
+                final Iterator<Record> records = dao.iterator(key(thread, random.nextInt(OWN_KEYS)));
+                ByteBuffer previous = null;
+                for (int i = 0; i < 50 && records.hasNext(); i++) {
+                    final ByteBuffer current = records.next().getKey();
+                    assertTrue(previous == null || previous.compareTo(current) < 0);
+                    previous = current;
+                }
+            }
+        }
+        return own;
+    }
+
+    private static void assertContents(
+            @NotNull final DAO dao,
+            @NotNull final List<Map<ByteBuffer, ByteBuffer>> expected) throws IOException {
+        for (int thread = 0; thread < THREADS; thread++) {
+            final Map<ByteBuffer, ByteBuffer> own = expected.get(thread);
+            for (int i = 0; i < OWN_KEYS; i++) {
+                final ByteBuffer key = key(thread, i);
+                final ByteBuffer value = own.get(key);
+                if (value == null) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                } else {
+                    assertEquals(value, dao.get(key));
+                }
+            }
+        }
+    }
+
+    private static long tableFiles(@NotNull final File data) {
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(".data"));
+        return files == null ? 0 : files.length;
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int thread, final int index) {
+        return ByteBuffer.allocate(2 * Integer.BYTES).putInt(thread).putInt(index).flip();
+    }
+
+    @NotNull
+    private static ByteBuffer orderedKey(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int thread, final int op) {
+        final ByteBuffer value = ByteBuffer.allocate(256);
+        value.putInt(thread).putInt(op).put(randomBuffer(value.remaining()));
+        return value.flip();
+    }
+}
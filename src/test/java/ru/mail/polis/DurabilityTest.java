@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that acknowledged writes survive a {@link DAO} that was never closed.
+ */
+class DurabilityTest extends TestBase {
+    @Test
+    void replayWithoutClose(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+        final ByteBuffer removed = randomKey();
+
+        // Simulate crash: the DAO is abandoned without close()
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(key, value);
+        crashed.upsert(removed, randomValue());
+        crashed.remove(removed);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+            assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+        }
+    }
+
+    @Test
+    void ignoreTornTail(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKey();
+        final ByteBuffer value = randomValue();
+
+        final DAO crashed = DAOFactory.create(data);
+        crashed.upsert(key, value);
+
+        // Half-written record at the end of the log
+        final File[] logs = data.listFiles((dir, name) -> name.endsWith(".log"));
+        assertNotNull(logs);
+        assertEquals(1, logs.length);
+        try (FileChannel ch = FileChannel.open(logs[0].toPath(), StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.allocate(Integer.BYTES).putInt(1024).flip());
+            ch.write(randomBuffer(100));
+        }
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+}
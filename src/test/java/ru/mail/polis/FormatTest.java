@@ -0,0 +1,188 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.Compression;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the on-disk table format: legacy tables stay readable, block keys are prefix-compressed
+ * and blocks are compressed with every supported codec.
+ */
+class FormatTest extends TestBase {
+    @Test
+    void readLegacyTable(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        for (int i = 0; i < 1000; i++) {
+            values.put(randomKey(), randomValue());
+        }
+        final ByteBuffer removed = randomKey();
+        final Map<ByteBuffer, ByteBuffer> cells = new TreeMap<>(values);
+        cells.put(removed, null);
+        writeLegacyTable(new File(data, "LSM-DB-GEN-1.data"), cells, 1L);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertContents(dao, values, removed);
+            dao.compact();
+            assertContents(dao, values, removed);
+        }
+
+        // Upgraded table is read back in the new format
+        try (DAO dao = DAOFactory.create(data)) {
+            assertContents(dao, values, removed);
+        }
+    }
+
+    @Test
+    void legacyTimestampsPrecedeNewWrites(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        for (int i = 0; i < 100; i++) {
+            values.put(randomKey(), randomValue());
+        }
+        final ByteBuffer removed = randomKey();
+        // Legacy cells carry wall-clock milliseconds, here from a clock running a day ahead
+        final long timestamp = System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1);
+        final Map<ByteBuffer, ByteBuffer> cells = new TreeMap<>(values);
+        cells.put(removed, null);
+        writeLegacyTable(new File(data, "LSM-DB-GEN-1.data"), cells, timestamp);
+
+        final ByteBuffer key = values.keySet().iterator().next();
+        final ByteBuffer value = randomValue();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+            dao.upsert(removed, value);
+            assertEquals(value, dao.get(key));
+            assertEquals(value, dao.get(removed));
+        }
+
+        // The manifest keeps the largest legacy timestamp, so the table is not read on open again
+        try (MyDAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP / 4)) {
+            assertEquals(0, dao.getStatistics().getTableOpens());
+            dao.upsert(key, values.get(key));
+            assertEquals(values.get(key), dao.get(key));
+            assertEquals(value, dao.get(removed));
+        }
+    }
+
+    @Test
+    void prefixCompression(@TempDir File data) throws IOException {
+        final int count = 20_000;
+        final Map<ByteBuffer, ByteBuffer> random = new TreeMap<>();
+        final Map<ByteBuffer, ByteBuffer> prefixed = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            random.put(randomKey(), randomBuffer(8));
+            final String key = String.format("tenant-%04d/entity-order/%08d", i % 16, i);
+            prefixed.put(ByteBuffer.wrap(key.getBytes(StandardCharsets.UTF_8)), randomBuffer(8));
+        }
+
+        final long randomFull = tableSize(new File(data, "random-full"), random, 1);
+        final long randomShared = tableSize(new File(data, "random-shared"), random, 16);
+        final long prefixedFull = tableSize(new File(data, "prefixed-full"), prefixed, 1);
+        final long prefixedShared = tableSize(new File(data, "prefixed-shared"), prefixed, 16);
+
+        // Random keys have almost nothing in common, restarts must not cost much
+        assertTrue(randomShared < randomFull * 1.05, randomShared + " vs " + randomFull);
+        assertTrue(prefixedShared < prefixedFull * 0.7, prefixedShared + " vs " + prefixedFull);
+    }
+
+    @Test
+    void blockCompression(@TempDir File data) throws IOException {
+        final Map<ByteBuffer, ByteBuffer> values = new TreeMap<>();
+        for (int i = 0; i < 5_000; i++) {
+            final String json = String.format(
+                    "{\"id\":%d,\"status\":\"%s\",\"tags\":[\"order\",\"tenant-%d\"],\"amount\":%d}",
+                    i, i % 3 == 0 ? "ACTIVE" : "ARCHIVED", i % 7, i * 31);
+            values.put(randomKey(), ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        final Config config = Config.defaults();
+        final long none = tableSize(new File(data, "none"), values, config.withCompression(Compression.NONE));
+        final long deflate = tableSize(new File(data, "deflate"), values, config.withCompression(Compression.DEFLATE));
+        final long lz4 = tableSize(new File(data, "lz4"), values, config.withCompression(Compression.LZ4));
+
+        assertTrue(deflate < none * 0.7, deflate + " vs " + none);
+        assertTrue(lz4 < none * 0.8, lz4 + " vs " + none);
+    }
+
+    private static long tableSize(
+            @NotNull final File data,
+            @NotNull final Map<ByteBuffer, ByteBuffer> values,
+            final int restartInterval) throws IOException {
+        final Config config = Config.defaults().withCompression(Compression.NONE);
+        return tableSize(data, values, config.withRestartInterval(restartInterval));
+    }
+
+    private static long tableSize(
+            @NotNull final File data,
+            @NotNull final Map<ByteBuffer, ByteBuffer> values,
+            @NotNull final Config config) throws IOException {
+        assertTrue(data.mkdir());
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP / 62, config)) {
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+                dao.upsert(entry.getKey(), entry.getValue());
+            }
+        }
+        try (DAO dao = new MyDAO(data.toPath(), DAOFactory.MAX_HEAP / 62, config)) {
+            assertContents(dao, values, randomKey());
+        }
+        final File[] files = data.listFiles();
+        assertNotNull(files);
+        long size = 0;
+        for (final File file : files) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    private static void assertContents(
+            @NotNull final DAO dao,
+            @NotNull final Map<ByteBuffer, ByteBuffer> values,
+            @NotNull final ByteBuffer removed) throws IOException {
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : values.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.CompactionStyle;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Leveled compaction in {@link MyDAO}.
+ */
+class LeveledCompactionTest extends TestBase {
+    private static final Config LEVELED = Config.defaults()
+            .withCompactionStyle(CompactionStyle.LEVELED)
+            .withLevelBaseSize(64 * 1024)
+            .withLevelMultiplier(4)
+            .withTargetFileSize(16 * 1024);
+
+    @Test
+    void appendOnlyWritesLessThanFull(@TempDir File data) throws IOException {
+        final Config fullConfig = Config.defaults().withCompactionStyle(CompactionStyle.FULL);
+        final double full = appendBatches(new File(data, "full"), fullConfig);
+        final double leveled = appendBatches(new File(data, "leveled"), LEVELED);
+        assertTrue(leveled < full / 2, "leveled " + leveled + ", full " + full);
+    }
+
+    @Test
+    void newestVersionWinsAcrossLevels(@TempDir File data) throws IOException {
+        final Random random = new Random(1);
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Config config = LEVELED.withLevelBaseSize(16 * 1024).withTargetFileSize(4 * 1024);
+        try (MyDAO dao = new MyDAO(data.toPath(), 16 * 1024, config)) {
+            for (int batch = 0; batch < 20; batch++) {
+                for (int op = 0; op < 300; op++) {
+                    final ByteBuffer key = key(random.nextInt(500));
+                    if (random.nextInt(5) == 0) {
+                        dao.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final ByteBuffer value = randomBuffer(100);
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                }
+                dao.compact();
+                assertContents(dao, expected, 500);
+            }
+            assertTrue(dao.getTableLevels().values().stream().anyMatch(level -> level > 1));
+        }
+        try (DAO dao = new MyDAO(data.toPath(), 16 * 1024, config)) {
+            assertContents(dao, expected, 500);
+        }
+    }
+
+    @Test
+    void wideRangeDeleteSurvivesLevels(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final Config config = LEVELED.withLevelBaseSize(16 * 1024).withTargetFileSize(4 * 1024);
+        try (MyDAO dao = new MyDAO(data.toPath(), 16 * 1024, config)) {
+            for (int i = 0; i < 500; i++) {
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+            dao.compact();
+            // A narrow table at the top of the levels carries a range delete spanning most of the keys below
+            dao.removeRange(key(50), key(450));
+            expected.subMap(key(50), key(450)).clear();
+            for (int i = 200; i < 210; i++) {
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+            for (int round = 0; round < 5; round++) {
+                dao.compact();
+                assertContents(dao, expected, 500);
+            }
+        }
+        try (DAO dao = new MyDAO(data.toPath(), 16 * 1024, config)) {
+            assertContents(dao, expected, 500);
+        }
+    }
+
+    private static double appendBatches(@NotNull final File data, @NotNull final Config config) throws IOException {
+        assertTrue(data.mkdir());
+        try (MyDAO dao = new MyDAO(data.toPath(), 1024 * 1024, config)) {
+            for (int batch = 0; batch < 40; batch++) {
+                for (int i = 0; i < 200; i++) {
+                    dao.upsert(key(batch * 200 + i), randomBuffer(256));
+                }
+                dao.compact();
+            }
+            return dao.getStatistics().getWriteAmplification();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link MyDAO} restores its table set from the manifest: tables are opened on first read,
+ * files left by crashed flushes and compactions are removed, and directories without a manifest still open.
+ */
+class ManifestTest extends TestBase {
+    private static final int KEYS = 5_000;
+    private static final long MEMTABLE_SIZE = 64 * 1024;
+
+    @Test
+    void tablesOpenOnFirstRead(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = fill(data);
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            assertTrue(dao.getTableLevels().size() > 2);
+            assertEquals(0, dao.getStatistics().getTableOpens());
+            dao.get(key(0));
+            assertEquals(1, dao.getStatistics().getTableOpens());
+            assertContents(dao, expected, KEYS);
+        }
+    }
+
+    @Test
+    void orphanFilesAreRemoved(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = fill(data);
+
+        // Output of a compaction that crashed before the manifest recorded it
+        final File orphan = new File(data, "LSM-DB-GEN-100000.data");
+        try (FileChannel ch = FileChannel.open(orphan.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            ch.write(randomBuffer(4096));
+        }
+        // Half-written record at the end of the manifest
+        try (FileChannel ch = FileChannel.open(new File(data, "MANIFEST").toPath(), StandardOpenOption.APPEND)) {
+            ch.write(ByteBuffer.allocate(Integer.BYTES).putInt(1024).flip());
+            ch.write(randomBuffer(100));
+        }
+
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            assertFalse(orphan.exists());
+            assertContents(dao, expected, KEYS);
+            for (int i = 0; i < KEYS; i += 10) {
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+            dao.compact();
+        }
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            assertContents(dao, expected, KEYS);
+        }
+    }
+
+    @Test
+    void openWithoutManifest(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = fill(data);
+        final File manifest = new File(data, "MANIFEST");
+        assertTrue(manifest.delete());
+
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            assertContents(dao, expected, KEYS);
+        }
+        assertTrue(manifest.exists());
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            assertContents(dao, expected, KEYS);
+        }
+    }
+
+    @NotNull
+    private static SortedMap<ByteBuffer, ByteBuffer> fill(@NotNull final File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+        }
+        return expected;
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tables read through memory-mapped files by {@link MyDAO}.
+ */
+class MmapTest extends TestBase {
+    private static final int KEYS = 2000;
+    private static final long MEMTABLE_SIZE = 64 * 1024;
+    private static final Config MMAP = Config.defaults().withMmap(true);
+
+    @Test
+    void valuesSurviveCompactionAndClose(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, MMAP)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+        }
+
+        final ByteBuffer value;
+        final Record record;
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, MMAP)) {
+            value = dao.get(key(1));
+            // Exhausted, so the iterator no longer holds the tables it read
+            final Iterator<Record> records = dao.range(key(2), key(3));
+            record = records.next();
+            assertFalse(records.hasNext());
+            for (int i = 0; i < KEYS; i += 2) {
+                dao.upsert(key(i), randomBuffer(100));
+            }
+            // The tables the value and the record were read from are unmapped and deleted here
+            dao.compact();
+            assertEquals(expected.get(key(1)), value);
+            assertEquals(key(2), record.getKey());
+            assertEquals(expected.get(key(2)), record.getValue());
+        }
+        assertEquals(expected.get(key(1)), value);
+        assertEquals(key(2), record.getKey());
+        assertEquals(expected.get(key(2)), record.getValue());
+    }
+
+    @Test
+    void readsAcrossSegmentBoundaries(@TempDir File data) throws IOException {
+        // Tables span many 4 KB segments, so blocks and cells often cross a boundary
+        final Config config = MMAP.withMmapSegmentSize(4096);
+        final Random random = new Random(1);
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer value = randomBuffer(1 + random.nextInt(10 * 1024));
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+        }
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, config)) {
+            assertContents(dao, expected, KEYS);
+            dao.compact();
+            assertContents(dao, expected, KEYS);
+        }
+    }
+
+    @Test
+    void abandonedIteratorsSurviveCompaction(@TempDir File data) throws Exception {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, MMAP)) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer value = randomBuffer(100);
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+            final AtomicBoolean done = new AtomicBoolean();
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                // Keys past the checked ones keep adding tables, so every compaction replaces and unmaps some
+                final Future<?> compactor = executor.submit(() -> {
+                    for (int round = 0; !done.get(); round++) {
+                        for (int i = 0; i < 100; i++) {
+                            dao.upsert(key(KEYS + round % 10 * 100 + i), randomBuffer(100));
+                        }
+                        dao.compact();
+                    }
+                    return null;
+                });
+                final Random random = new Random(1);
+                for (int i = 0; i < 20_000; i++) {
+                    final int index = random.nextInt(KEYS);
+                    // The iterator is dropped right after the first record, its tables are released by GC
+                    assertEquals(Record.of(key(index), expected.get(key(index))), dao.iterator(key(index)).next());
+                    if (i % 1000 == 0) {
+                        System.gc();
+                    }
+                }
+                done.set(true);
+                compactor.get();
+            } finally {
+                done.set(true);
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @Test
+    void closedIteratorReleasesTables(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, MMAP)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), randomBuffer(100));
+            }
+            final Iterator<Record> records = dao.iterator(key(0));
+            assertEquals(key(0), records.next().getKey());
+            dao.compact();
+            final long pinned = tableFiles(data);
+
+            ((Closeable) records).close();
+            assertFalse(records.hasNext());
+            assertThrows(NoSuchElementException.class, records::next);
+            // Tables replaced by the compaction are deleted as soon as the iterator is closed
+            assertTrue(tableFiles(data) < pinned);
+            assertEquals(1, tableFiles(data));
+        }
+    }
+
+    private static long tableFiles(@NotNull final File data) {
+        final File[] files = data.listFiles((dir, name) -> name.endsWith(".data"));
+        return files == null ? 0 : files.length;
+    }
+
+    @Test
+    void segmentSizeIsPowerOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> MMAP.withMmapSegmentSize(5000));
+        assertThrows(IllegalArgumentException.class, () -> MMAP.withMmapSegmentSize(2048));
+        assertThrows(IllegalArgumentException.class, () -> MMAP.withMmapSegmentSize(1L << 31));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Cell offsets of legacy tables in {@link MyDAO} are read once when the table is opened:
+ * onto the heap when reading through the channel, and left in the mapping with mmap.
+ */
+class OffsetIndexTest extends TestBase {
+    private static final int KEYS = 1000;
+    private static final long MEMTABLE_SIZE = 1024 * 1024;
+
+    @Test
+    void offsetsAreReadOnOpen(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = fill();
+        final File table = new File(data, "LSM-DB-GEN-1.data");
+        writeLegacyTable(table, expected, 1L);
+
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            assertEquals(expected.get(key(0)), dao.get(key(0)));
+            assertTrue(dao.getIndexSizes().get(1L) >= (long) Long.BYTES * KEYS);
+
+            // Lookups keep working after the offsets on disk are wiped, so they are not read again
+            try (FileChannel channel = FileChannel.open(table.toPath(), StandardOpenOption.WRITE)) {
+                final long offsets = channel.size() - Integer.BYTES - (long) Long.BYTES * KEYS;
+                channel.write(ByteBuffer.allocate(Long.BYTES * KEYS), offsets);
+            }
+            assertContents(dao, expected, KEYS);
+        }
+    }
+
+    @Test
+    void mappedOffsetsStayOffHeap(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = fill();
+        writeLegacyTable(new File(data, "LSM-DB-GEN-1.data"), expected, 1L);
+
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, Config.defaults().withMmap(true))) {
+            assertContents(dao, expected, KEYS);
+            assertTrue(dao.getIndexSizes().get(1L) < (long) Long.BYTES * KEYS);
+        }
+    }
+
+    private static SortedMap<ByteBuffer, ByteBuffer> fill() {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            expected.put(key(i), randomBuffer(100));
+        }
+        return expected;
+    }
+}
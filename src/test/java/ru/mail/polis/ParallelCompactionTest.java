@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compaction split into key ranges merged in parallel by {@link MyDAO}.
+ */
+class ParallelCompactionTest extends TestBase {
+    private static final int KEYS = 40_000;
+    private static final int THREADS = 4;
+    private static final long MEMTABLE_SIZE = 1024 * 1024;
+    private static final Config PARALLEL = Config.defaults().withCompactionThreads(THREADS);
+
+    @Test
+    void rangesCoverAllKeys(@TempDir File data) throws IOException {
+        final Random random = new Random(1);
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, PARALLEL)) {
+            for (int round = 0; round < 2; round++) {
+                for (int i = 0; i < KEYS; i++) {
+                    final ByteBuffer key = key(random.nextInt(KEYS));
+                    if (random.nextInt(10) == 0) {
+                        dao.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final ByteBuffer value = randomBuffer(100);
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                }
+                dao.compact();
+                final int tables = dao.getTableLevels().size();
+                assertTrue(tables > 1 && tables <= THREADS, "tables " + tables);
+                assertContents(dao, expected, KEYS);
+            }
+        }
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, PARALLEL)) {
+            assertContents(dao, expected, KEYS);
+        }
+    }
+}
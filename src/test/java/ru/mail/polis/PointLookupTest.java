@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.MyDAO;
+import ru.mail.polis.pokrovskiy.Statistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Point lookups of {@link MyDAO} probe the memory table first and then disk tables newest first,
+ * stopping at the first table that has the key, whether it holds a value or a tombstone.
+ */
+class PointLookupTest extends TestBase {
+    private static final int TABLES = 5;
+    private static final long MEMTABLE_SIZE = 1024 * 1024;
+
+    @Test
+    void newestTableAnswers(@TempDir File data) throws IOException {
+        // One table per reopen; every table spans the same key range, so none is skipped by it
+        for (int table = 0; table < TABLES; table++) {
+            try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+                dao.upsert(key(0), value(table));
+                dao.upsert(key(999), value(table));
+                dao.upsert(key(500), value(table));
+                if (table == 0) {
+                    dao.upsert(key(300), value(table));
+                    dao.upsert(key(400), value(table));
+                } else if (table == TABLES - 1) {
+                    dao.remove(key(400));
+                }
+            }
+        }
+
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            final Statistics statistics = dao.getStatistics();
+            assertEquals(TABLES, dao.getTableLevels().size());
+
+            assertEquals(value(TABLES - 1), dao.get(key(500)));
+            assertProbes(statistics, 1, 0);
+
+            // A tombstone in the newest table ends the lookup as well
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(400)));
+            assertProbes(statistics, 2, 0);
+
+            // A key only the oldest table has is looked for in every newer one first
+            assertEquals(value(0), dao.get(key(300)));
+            assertProbes(statistics, 3, TABLES - 1);
+
+            // The memory table answers without touching disk tables
+            dao.upsert(key(500), value(TABLES));
+            assertEquals(value(TABLES), dao.get(key(500)));
+            dao.remove(key(300));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(300)));
+            assertProbes(statistics, 3, TABLES - 1);
+        }
+    }
+
+    /**
+     * Checks how many table probes found the key and how many filters or probes ruled it out.
+     */
+    private static void assertProbes(
+            @NotNull final Statistics statistics,
+            final long found,
+            final long missed) {
+        assertEquals(found, statistics.getBloomTruePositives());
+        assertEquals(missed, statistics.getBloomNegatives() + statistics.getBloomFalsePositives()
+                + statistics.getKeyRangeSkips());
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int table) {
+        return ByteBuffer.wrap(("value from table " + table).getBytes(StandardCharsets.UTF_8));
+    }
+}
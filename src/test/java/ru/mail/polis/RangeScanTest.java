@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.Compression;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Short range scans and lookups of {@link MyDAO} read only the tables and blocks that can hold the keys.
+ */
+class RangeScanTest extends TestBase {
+    private static final int KEYS = 10_000;
+    private static final long MEMTABLE_SIZE = 64 * 1024;
+
+    @Test
+    void shortRangeReadsFewBlocks(@TempDir File data) throws IOException {
+        // Compressed blocks go through the block cache, so its misses count the blocks read
+        final Config config = Config.defaults().withCompression(Compression.LZ4);
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, config)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), ByteBuffer.allocate(100));
+            }
+            dao.compact();
+        }
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, config)) {
+            for (int i = 0; i < KEYS; i += 100) {
+                dao.upsert(key(i), ByteBuffer.allocate(100));
+            }
+            assertRange(dao, 5000, 5010);
+            final long misses = dao.getStatistics().getBlockCacheMisses();
+            assertTrue(misses >= 1 && misses <= 2, "Blocks read: " + misses);
+            assertRange(dao, 0, 0);
+            assertRange(dao, KEYS - 5, KEYS);
+            assertFalse(dao.range(key(10), key(5)).hasNext());
+        }
+    }
+
+    @Test
+    void disjointTablesAreSkipped(@TempDir File data) throws IOException {
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), randomBuffer(100));
+            }
+        }
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            final int tables = dao.getTableLevels().size();
+            assertTrue(tables > 2);
+            dao.get(key(0));
+            assertTrue(dao.getStatistics().getKeyRangeSkips() >= tables - 1);
+            final long skips = dao.getStatistics().getKeyRangeSkips();
+            assertRange(dao, 5000, 5010);
+            assertTrue(dao.getStatistics().getKeyRangeSkips() - skips >= tables - 2);
+            assertEquals(0, dao.getStatistics().getBloomNegatives());
+        }
+    }
+
+    private static void assertRange(@NotNull final DAO dao, final int from, final int to) throws IOException {
+        final Iterator<Record> records = dao.range(key(from), key(to));
+        for (int i = from; i < to; i++) {
+            assertEquals(key(i), records.next().getKey());
+        }
+        assertFalse(records.hasNext());
+    }
+}
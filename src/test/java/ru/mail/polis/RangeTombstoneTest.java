@@ -0,0 +1,130 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.CompactionStyle;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Range deletions in {@link MyDAO}.
+ */
+class RangeTombstoneTest extends TestBase {
+    private static final int KEYS = 1000;
+    private static final long MEMTABLE_SIZE = 16 * 1024;
+
+    @Test
+    void rangeHidesOlderValues(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            dao.compact();
+            dao.removeRange(key(100), key(200));
+            dao.upsert(key(150), value(-150));
+            assertRemoved(dao);
+        }
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            assertRemoved(dao);
+            dao.compact();
+            assertEquals(1, dao.getTableLevels().size());
+            assertRemoved(dao);
+        }
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            assertRemoved(dao);
+        }
+    }
+
+    @Test
+    void partialCompactionKeepsRange(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            dao.compact();
+        }
+        final Config tiered = Config.defaults()
+                .withCompactionStyle(CompactionStyle.SIZE_TIERED)
+                .withTierThreshold(2);
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, tiered)) {
+            dao.removeRange(key(100), key(200));
+        }
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, tiered)) {
+            dao.upsert(key(150), value(-150));
+            dao.compact();
+            assertEquals(2, dao.getTableLevels().size());
+            assertRemoved(dao);
+        }
+    }
+
+    @Test
+    void rangeSurvivesCrash(@TempDir File data) throws IOException {
+        // Simulate crash: the DAO is abandoned without close()
+        final DAO crashed = DAOFactory.create(data);
+        for (int i = 0; i < KEYS; i++) {
+            crashed.upsert(key(i), value(i));
+        }
+        crashed.removeRange(key(KEYS / 2), null);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            final Iterator<Record> records = dao.iterator(key(0));
+            for (int i = 0; i < KEYS / 2; i++) {
+                assertEquals(key(i), records.next().getKey());
+            }
+            assertFalse(records.hasNext());
+        }
+    }
+
+    private static void assertRemoved(@NotNull final DAO dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            if (i == 150) {
+                assertEquals(value(-150), dao.get(key));
+            } else if (i >= 100 && i < 200) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value(i), dao.get(key));
+            }
+        }
+        final Iterator<Record> records = dao.iterator(key(0));
+        for (int i = 0; i < KEYS; i++) {
+            if (i == 150 || i < 100 || i >= 200) {
+                assertEquals(key(i), records.next().getKey());
+            }
+        }
+        assertFalse(records.hasNext());
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(String.format("value%d", index).getBytes(StandardCharsets.UTF_8));
+    }
+}
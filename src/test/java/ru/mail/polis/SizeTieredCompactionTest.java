@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.CompactionStyle;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Size-tiered compaction in {@link MyDAO}.
+ */
+class SizeTieredCompactionTest extends TestBase {
+    private static final int KEYS = 2000;
+    private static final long MEMTABLE_SIZE = 16 * 1024;
+    private static final Config TIERED = Config.defaults()
+            .withCompactionStyle(CompactionStyle.SIZE_TIERED)
+            .withTierThreshold(4);
+
+    @Test
+    void newestVersionWinsAcrossTiers(@TempDir File data) throws IOException {
+        final Random random = new Random(1);
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, TIERED)) {
+            for (int batch = 0; batch < 30; batch++) {
+                for (int op = 0; op < 300; op++) {
+                    final ByteBuffer key = key(random.nextInt(KEYS));
+                    if (random.nextInt(5) == 0) {
+                        dao.remove(key);
+                        expected.remove(key);
+                    } else {
+                        final ByteBuffer value = randomBuffer(100);
+                        dao.upsert(key, value);
+                        expected.put(key, value);
+                    }
+                }
+                dao.compact();
+                assertTrue(dao.getTableLevels().size() < 4 * 4);
+            }
+            assertContents(dao, expected, KEYS);
+        }
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, TIERED)) {
+            assertContents(dao, expected, KEYS);
+        }
+    }
+
+    @Test
+    void overwritesWriteLessThanFull(@TempDir File data) throws IOException {
+        final Config fullConfig = Config.defaults().withCompactionStyle(CompactionStyle.FULL);
+        final double full = overwriteBatches(new File(data, "full"), fullConfig);
+        final double tiered = overwriteBatches(new File(data, "tiered"), TIERED);
+        assertTrue(tiered < full / 2, "tiered " + tiered + ", full " + full);
+    }
+
+    private static double overwriteBatches(@NotNull final File data, @NotNull final Config config) throws IOException {
+        assertTrue(data.mkdir());
+        final Random random = new Random(1);
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, config)) {
+            for (int batch = 0; batch < 40; batch++) {
+                for (int i = 0; i < 200; i++) {
+                    dao.upsert(key(random.nextInt(KEYS)), randomBuffer(100));
+                }
+                dao.compact();
+            }
+            return dao.getStatistics().getWriteAmplification();
+        }
+    }
+}
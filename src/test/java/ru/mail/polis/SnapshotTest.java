@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Sequence numbers and read snapshots of {@link MyDAO}.
+ */
+class SnapshotTest extends TestBase {
+    private static final int KEYS = 1000;
+    private static final long MEMTABLE_SIZE = 16 * 1024;
+
+    @Test
+    void snapshotIgnoresLaterWrites(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i, 1));
+            }
+            try (Snapshot snapshot = dao.snapshot()) {
+                for (int i = 0; i < KEYS; i++) {
+                    if (i % 2 == 0) {
+                        dao.remove(key(i));
+                    } else {
+                        dao.upsert(key(i), value(i, 2));
+                    }
+                }
+                dao.removeRange(key(100), key(200));
+                dao.compact();
+                for (int i = 0; i < KEYS; i++) {
+                    assertEquals(value(i, 1), snapshot.get(key(i)));
+                }
+                final Iterator<Record> records = snapshot.iterator(key(0));
+                for (int i = 0; i < KEYS; i++) {
+                    assertEquals(Record.of(key(i), value(i, 1)), records.next());
+                }
+                assertFalse(records.hasNext());
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+            assertEquals(value(201, 2), dao.get(key(201)));
+        }
+        // Sequence numbers continue after reopen, so new writes still win
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            dao.upsert(key(201), value(201, 3));
+            assertEquals(value(201, 3), dao.get(key(201)));
+        }
+    }
+
+    @Test
+    void batchIsSeenWhole(@TempDir File data) throws Exception {
+        final int keys = 100;
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            final AtomicBoolean done = new AtomicBoolean();
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                final Future<?> writer = executor.submit(() -> {
+                    for (int round = 0; round < 200; round++) {
+                        final WriteBatch batch = new WriteBatch();
+                        for (int i = 0; i < keys; i++) {
+                            batch.upsert(key(i), value(0, round));
+                        }
+                        dao.apply(batch);
+                    }
+                    done.set(true);
+                    return null;
+                });
+                while (!done.get()) {
+                    try (Snapshot snapshot = dao.snapshot()) {
+                        final Iterator<Record> records = snapshot.iterator(key(0));
+                        if (!records.hasNext()) {
+                            continue;
+                        }
+                        final ByteBuffer expected = records.next().getValue();
+                        while (records.hasNext()) {
+                            assertEquals(expected, records.next().getValue());
+                        }
+                    }
+                }
+                writer.get();
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int index, final int version) {
+        return ByteBuffer.wrap(String.format("value%d-%d", index, version).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The sparse in-memory index of legacy tables in {@link MyDAO}: every {@code withIndexInterval}-th key
+ * is sampled, and lookups between samples search the cells that follow the nearest sample.
+ */
+class SparseIndexTest extends TestBase {
+    private static final int KEYS = 1000;
+    private static final int[] INTERVALS = {1, 7, 16, 64, 2 * KEYS};
+
+    @Test
+    void seeksBetweenSamples(@TempDir File data) throws IOException {
+        // Even keys only, so odd keys fall between samples and between cells
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < 2 * KEYS; i += 2) {
+            expected.put(key(i), randomBuffer(100));
+        }
+        for (final int interval : INTERVALS) {
+            final File directory = legacyTable(data, interval, expected);
+            try (DAO dao = new MyDAO(directory.toPath(), DAOFactory.MAX_HEAP / 4,
+                    Config.defaults().withIndexInterval(interval))) {
+                for (int i = 0; i < 2 * KEYS; i++) {
+                    final ByteBuffer key = key(i);
+                    if (i % 2 == 0) {
+                        assertEquals(expected.get(key), dao.get(key));
+                    } else {
+                        assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                    }
+                }
+                for (int from = 1; from < 2 * KEYS; from += 37) {
+                    final int to = Math.min(from + 2 * interval + 3, 2 * KEYS + 1);
+                    assertRange(dao, expected, key(from), key(to));
+                }
+                assertRange(dao, expected, ByteBuffer.allocate(0), key(0));
+                assertRange(dao, expected, key(2 * KEYS - 1), key(2 * KEYS + 1));
+            }
+        }
+    }
+
+    @Test
+    void indexSizeFollowsInterval(@TempDir File data) throws IOException {
+        final SortedMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            expected.put(key(i), randomBuffer(100));
+        }
+        long previous = Long.MAX_VALUE;
+        for (final int interval : INTERVALS) {
+            final File directory = legacyTable(data, interval, expected);
+            try (MyDAO dao = new MyDAO(directory.toPath(), DAOFactory.MAX_HEAP / 4,
+                    Config.defaults().withIndexInterval(interval))) {
+                assertEquals(expected.get(key(0)), dao.get(key(0)));
+                final Map<Long, Long> sizes = dao.getIndexSizes();
+                assertEquals(1, sizes.size());
+                final long size = sizes.values().iterator().next();
+                // Sampled keys are the only part of the index that depends on the interval
+                assertTrue(size < previous, interval + ": " + size + " vs " + previous);
+                previous = size;
+            }
+        }
+    }
+
+    @NotNull
+    private static File legacyTable(
+            @NotNull final File data,
+            final int interval,
+            @NotNull final Map<ByteBuffer, ByteBuffer> cells) throws IOException {
+        final File directory = new File(data, "interval-" + interval);
+        assertTrue(directory.mkdir());
+        writeLegacyTable(new File(directory, "LSM-DB-GEN-1.data"), cells, 1L);
+        return directory;
+    }
+
+    private static void assertRange(
+            @NotNull final DAO dao,
+            @NotNull final SortedMap<ByteBuffer, ByteBuffer> expected,
+            @NotNull final ByteBuffer from,
+            @NotNull final ByteBuffer to) throws IOException {
+        final Iterator<Record> records = dao.range(from, to);
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.subMap(from, to).entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+}
@@ -18,9 +18,22 @@ package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
 import java.util.concurrent.ThreadLocalRandom;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
 /**
  * Contains utility methods for unit tests.
  *
@@ -48,6 +61,76 @@ abstract class TestBase {
         return randomBuffer(VALUE_LENGTH);
     }
 
+    /**
+     * Writes {@code cells}, given in key order, as a table of the original format, which has no metadata:
+     * {@code [long keySize][key][long timestamp][byte tombstone][long valueSize][value]} per cell
+     * followed by cell offsets and the cell count. A {@code null} value is written as a tombstone.
+     */
+    static void writeLegacyTable(
+            @NotNull final File file,
+            @NotNull final Map<ByteBuffer, ByteBuffer> cells,
+            final long timestamp) throws IOException {
+        final long[] offsets = new long[cells.size()];
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE_NEW)) {
+            int row = 0;
+            for (final Map.Entry<ByteBuffer, ByteBuffer> cell : cells.entrySet()) {
+                offsets[row++] = channel.position();
+                final ByteBuffer key = cell.getKey();
+                final ByteBuffer value = cell.getValue();
+                final int valueSize = value == null ? 0 : Long.BYTES + value.remaining();
+                final ByteBuffer buffer = ByteBuffer.allocate(
+                        Long.BYTES + key.remaining() + Long.BYTES + Byte.BYTES + valueSize);
+                buffer.putLong(key.remaining()).put(key.duplicate()).putLong(timestamp);
+                if (value == null) {
+                    buffer.put((byte) 1);
+                } else {
+                    buffer.put((byte) 0).putLong(value.remaining()).put(value.duplicate());
+                }
+                channel.write(buffer.flip());
+            }
+            final ByteBuffer index = ByteBuffer.allocate(Long.BYTES * offsets.length + Integer.BYTES);
+            for (final long offset : offsets) {
+                index.putLong(offset);
+            }
+            channel.write(index.putInt(offsets.length).flip());
+        }
+    }
+
+    /**
+     * Key number {@code index}; keys sort in the order of their numbers.
+     */
+    @NotNull
+    static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Checks point lookups of the first {@code keys} numbered keys, present or not,
+     * and that iteration returns exactly {@code expected}.
+     */
+    static void assertContents(
+            @NotNull final DAO dao,
+            @NotNull final SortedMap<ByteBuffer, ByteBuffer> expected,
+            final int keys) throws IOException {
+        for (int i = 0; i < keys; i++) {
+            final ByteBuffer key = key(i);
+            final ByteBuffer value = expected.get(key);
+            if (value == null) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key));
+            }
+        }
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
     @NotNull
     static ByteBuffer join(
             @NotNull final ByteBuffer left,
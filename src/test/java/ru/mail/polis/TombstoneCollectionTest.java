@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.CompactionStyle;
+import ru.mail.polis.pokrovskiy.Config;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tombstones dropped by {@link MyDAO} compaction.
+ */
+class TombstoneCollectionTest extends TestBase {
+    private static final int KEYS = 1000;
+    private static final long MEMTABLE_SIZE = 16 * 1024;
+
+    @Test
+    void fullCompactionDropsAllTombstones(@TempDir File data) throws IOException {
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), randomBuffer(100));
+            }
+            dao.compact();
+            for (int i = 0; i < KEYS; i++) {
+                dao.remove(key(i));
+            }
+            dao.compact();
+            assertEquals(KEYS, dao.getStatistics().getDroppedTombstones());
+            assertTrue(dao.getTableLevels().isEmpty());
+            assertFalse(dao.iterator(key(0)).hasNext());
+        }
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            assertFalse(dao.iterator(key(0)).hasNext());
+        }
+    }
+
+    @Test
+    void partialCompactionKeepsShadowingTombstones(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), randomBuffer(100));
+            }
+            dao.compact();
+        }
+        final Config tiered = Config.defaults()
+                .withCompactionStyle(CompactionStyle.SIZE_TIERED)
+                .withTierThreshold(4);
+        try (MyDAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE, tiered)) {
+            for (int batch = 0; batch < 4; batch++) {
+                for (int i = batch; i < KEYS / 2; i += 4) {
+                    dao.remove(key(i));
+                    dao.remove(key(KEYS * 10 + i));
+                }
+                dao.compact();
+            }
+            assertEquals(2, dao.getTableLevels().size());
+            assertEquals(KEYS / 2, dao.getStatistics().getDroppedTombstones());
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = key(i);
+                if (i < KEYS / 2) {
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key));
+                } else {
+                    dao.get(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import ru.mail.polis.pokrovskiy.MyDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * {@link WriteBatch} applied by {@link MyDAO}.
+ */
+class WriteBatchTest extends TestBase {
+    private static final int KEYS = 1000;
+    private static final long MEMTABLE_SIZE = 16 * 1024;
+
+    @Test
+    void batchesAreApplied(@TempDir File data) throws IOException {
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            for (int start = 0; start < KEYS; start += 100) {
+                final WriteBatch batch = new WriteBatch();
+                for (int i = start; i < start + 100; i++) {
+                    batch.upsert(key(i), randomBuffer(100)).upsert(key(i), value(i));
+                }
+                dao.apply(batch);
+            }
+            final WriteBatch removes = new WriteBatch();
+            for (int i = 0; i < KEYS; i += 2) {
+                removes.remove(key(i));
+            }
+            dao.apply(removes);
+            assertApplied(dao);
+        }
+        try (DAO dao = new MyDAO(data.toPath(), MEMTABLE_SIZE)) {
+            assertApplied(dao);
+        }
+    }
+
+    @Test
+    void batchSurvivesCrash(@TempDir File data) throws IOException {
+        // Simulate crash: the DAO is abandoned without close()
+        final DAO crashed = DAOFactory.create(data);
+        final WriteBatch batch = new WriteBatch();
+        for (int i = 0; i < KEYS; i++) {
+            batch.upsert(key(i), value(i));
+        }
+        for (int i = 0; i < KEYS; i += 2) {
+            batch.remove(key(i));
+        }
+        crashed.apply(batch);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertApplied(dao);
+        }
+    }
+
+    private static void assertApplied(@NotNull final DAO dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(i);
+            if (i % 2 == 0) {
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            } else {
+                assertEquals(value(i), dao.get(key));
+            }
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int index) {
+        return ByteBuffer.wrap(String.format("value%d", index).getBytes(StandardCharsets.UTF_8));
+    }
+}
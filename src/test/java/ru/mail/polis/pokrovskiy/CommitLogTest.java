@@ -0,0 +1,224 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Write and sync failures of {@link CommitLog}: a failed log accepts no more records,
+ * so nothing acknowledged is left behind a torn record where replay stops.
+ */
+class CommitLogTest {
+    private static final int RECORDS = 10;
+
+    @Test
+    void writeFailureRejectsLaterAppends(@TempDir File data) throws IOException {
+        final Path file = data.toPath().resolve("LSM-DB-GEN-1.log");
+        final FailingChannel channel = new FailingChannel(file);
+        int acknowledged = 0;
+        try (CommitLog log = new CommitLog(file, channel, SyncPolicy.everyBytes(Long.MAX_VALUE))) {
+            for (int i = 0; i < RECORDS; i++) {
+                log.append(key(i), value(i));
+                acknowledged++;
+            }
+            // The next record is torn in the middle, later ones must not land behind it
+            channel.budget = 10;
+            assertThrows(IOException.class, () -> log.append(key(RECORDS), value(RECORDS)));
+            channel.budget = Long.MAX_VALUE;
+            assertThrows(IOException.class, () -> log.append(key(RECORDS + 1), value(RECORDS + 1)));
+            assertThrows(IOException.class, () -> log.appendRange(new RangeTombstone(key(0), null, 1L)));
+        }
+
+        final MemoryTable replayed = new MemoryTable(1);
+        CommitLog.replay(file, replayed);
+        for (int i = 0; i < acknowledged; i++) {
+            assertEquals(value(i).getData(), replayed.get(key(i)).getData());
+        }
+        assertNull(replayed.get(key(RECORDS)));
+        assertNull(replayed.get(key(RECORDS + 1)));
+    }
+
+    @Test
+    void syncFailureRejectsLaterAppends(@TempDir File data) throws IOException {
+        final Path file = data.toPath().resolve("LSM-DB-GEN-1.log");
+        final FailingChannel channel = new FailingChannel(file);
+        final CommitLog log = new CommitLog(file, channel, SyncPolicy.perWrite());
+        log.append(key(0), value(0));
+        channel.forceFails = true;
+        assertThrows(IOException.class, () -> log.append(key(1), value(1)));
+        channel.forceFails = false;
+        assertThrows(IOException.class, () -> log.append(key(2), value(2)));
+        log.delete();
+    }
+
+    @Test
+    void oversizedRecordsReplay(@TempDir File data) throws IOException {
+        final Path file = data.toPath().resolve("LSM-DB-GEN-1.log");
+        final ByteBuffer large = ByteBuffer.allocate(1024 * 1024);
+        try (CommitLog log = CommitLog.create(data.toPath(), 1, SyncPolicy.perWrite())) {
+            log.append(key(0), value(0));
+            log.append(key(1), new Value(large.duplicate(), 2L, false));
+            log.append(key(2), value(2));
+        }
+        final MemoryTable replayed = new MemoryTable(1);
+        CommitLog.replay(file, replayed);
+        assertEquals(value(0).getData(), replayed.get(key(0)).getData());
+        assertEquals(large, replayed.get(key(1)).getData());
+        assertEquals(value(2).getData(), replayed.get(key(2)).getData());
+    }
+
+    @NotNull
+    private static ByteBuffer key(final int index) {
+        return ByteBuffer.wrap(String.format("key%06d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    @NotNull
+    private static Value value(final int index) {
+        return new Value(ByteBuffer.wrap(("value" + index).getBytes(StandardCharsets.UTF_8)), index + 1, false);
+    }
+
+    /** Канал файла, который пишет не больше budget байт и падает посередине записи, как при нехватке места,
+     * а при forceFails не сбрасывает данные на диск.
+     */
+    private static final class FailingChannel extends FileChannel {
+        private final FileChannel delegate;
+        private volatile long budget = Long.MAX_VALUE;
+        private volatile boolean forceFails;
+
+        FailingChannel(@NotNull final Path file) throws IOException {
+            this.delegate = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        }
+
+        @Override
+        public int write(final ByteBuffer src) throws IOException {
+            if (src.remaining() <= budget) {
+                final int written = delegate.write(src);
+                budget -= written;
+                return written;
+            }
+            final ByteBuffer part = src.duplicate();
+            part.limit(part.position() + (int) budget);
+            src.position(src.position() + delegate.write(part));
+            budget = 0;
+            throw new IOException("No space left on device");
+        }
+
+        @Override
+        public void force(final boolean metaData) throws IOException {
+            if (forceFails) {
+                throw new IOException("Input/output error");
+            }
+            delegate.force(metaData);
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) throws IOException {
+            return delegate.read(dst);
+        }
+
+        @Override
+        public long read(final ByteBuffer[] dsts, final int offset, final int length) throws IOException {
+            return delegate.read(dsts, offset, length);
+        }
+
+        @Override
+        public long write(final ByteBuffer[] srcs, final int offset, final int length) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() throws IOException {
+            return delegate.position();
+        }
+
+        @Override
+        public FileChannel position(final long newPosition) throws IOException {
+            delegate.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return delegate.size();
+        }
+
+        @Override
+        public FileChannel truncate(final long size) throws IOException {
+            delegate.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(final long position, final long count, final WritableByteChannel target)
+                throws IOException {
+            return delegate.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(final ReadableByteChannel src, final long position, final long count) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(final ByteBuffer dst, final long position) throws IOException {
+            return delegate.read(dst, position);
+        }
+
+        @Override
+        public int write(final ByteBuffer src, final long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MappedByteBuffer map(final MapMode mode, final long position, final long size) throws IOException {
+            return delegate.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(final long position, final long size, final boolean shared) throws IOException {
+            return delegate.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(final long position, final long size, final boolean shared) throws IOException {
+            return delegate.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Merging of sorted cell sources by {@link MergeIterator}: one cell per key, the newest by timestamp,
+ * ties broken in favour of the source with the larger generation.
+ */
+class MergeIteratorTest {
+    @Test
+    void emptySources() {
+        final Iterator<Cell> merged = new MergeIterator(List.of(
+                Collections.emptyIterator(), Collections.emptyIterator()));
+        assertFalse(merged.hasNext());
+        assertThrows(NoSuchElementException.class, merged::next);
+        assertFalse(new MergeIterator(List.of()).hasNext());
+    }
+
+    @Test
+    void duplicatesCollapseToNewest() {
+        final Iterator<Cell> merged = new MergeIterator(List.of(
+                List.of(cell(1, 5, 1), cell(2, 1, 1), cell(4, 3, 1)).iterator(),
+                List.of(cell(1, 2, 2), cell(2, 7, 2), cell(3, 1, 2)).iterator(),
+                List.of(cell(2, 4, 3), cell(4, 9, 3), cell(5, 1, 3)).iterator()));
+        assertCell(cell(1, 5, 1), merged.next());
+        assertCell(cell(2, 7, 2), merged.next());
+        assertCell(cell(3, 1, 2), merged.next());
+        assertCell(cell(4, 9, 3), merged.next());
+        assertCell(cell(5, 1, 3), merged.next());
+        assertFalse(merged.hasNext());
+    }
+
+    @Test
+    void equalTimestampsPreferLargerGeneration() {
+        // Ranks of tables on deeper levels are negative, so generations may be
+        final long[] generations = {3, -7, 12, 0, -1};
+        for (int first = 0; first < generations.length; first++) {
+            final List<Iterator<Cell>> sources = new ArrayList<>();
+            for (int i = 0; i < generations.length; i++) {
+                final long generation = generations[(first + i) % generations.length];
+                sources.add(List.of(cell(1, 10, generation), cell(2, 1, generation)).iterator());
+            }
+            final Iterator<Cell> merged = new MergeIterator(sources);
+            assertCell(cell(1, 10, 12), merged.next());
+            assertCell(cell(2, 1, 12), merged.next());
+            assertFalse(merged.hasNext());
+        }
+    }
+
+    @Test
+    void matchesNewestVersions() {
+        final Random random = new Random(1);
+        for (int round = 0; round < 100; round++) {
+            final Map<ByteBuffer, Cell> expected = new TreeMap<>();
+            final List<Iterator<Cell>> sources = new ArrayList<>();
+            final int count = 1 + random.nextInt(12);
+            for (int source = 0; source < count; source++) {
+                final long generation = random.nextInt(20) - 10;
+                final TreeMap<ByteBuffer, Cell> cells = new TreeMap<>();
+                for (int i = random.nextInt(50); i > 0; i--) {
+                    final Cell cell = cell(random.nextInt(100), random.nextInt(5), generation);
+                    cells.put(cell.getKey(), cell);
+                }
+                for (final Cell cell : cells.values()) {
+                    expected.merge(cell.getKey(), cell, (left, right) -> newer(left, right) ? left : right);
+                }
+                sources.add(cells.values().iterator());
+            }
+            final Iterator<Cell> merged = new MergeIterator(sources);
+            for (final Cell cell : expected.values()) {
+                assertTrue(merged.hasNext());
+                final Cell actual = merged.next();
+                assertEquals(cell.getKey(), actual.getKey());
+                assertEquals(cell.getValue().getTimestamp(), actual.getValue().getTimestamp());
+                assertEquals(cell.getGeneration(), actual.getGeneration());
+            }
+            assertFalse(merged.hasNext());
+        }
+    }
+
+    private static boolean newer(@NotNull final Cell left, @NotNull final Cell right) {
+        final long leftTimestamp = left.getValue().getTimestamp();
+        final long rightTimestamp = right.getValue().getTimestamp();
+        if (leftTimestamp != rightTimestamp) {
+            return leftTimestamp > rightTimestamp;
+        }
+        return left.getGeneration() > right.getGeneration();
+    }
+
+    private static void assertCell(@NotNull final Cell expected, @NotNull final Cell actual) {
+        assertEquals(expected.getKey(), actual.getKey());
+        assertEquals(expected.getValue().getData(), actual.getValue().getData());
+        assertEquals(expected.getValue().getTimestamp(), actual.getValue().getTimestamp());
+        assertEquals(expected.getGeneration(), actual.getGeneration());
+    }
+
+    @NotNull
+    private static Cell cell(final int key, final long timestamp, final long generation) {
+        final ByteBuffer data = ByteBuffer.wrap((timestamp + "@" + generation).getBytes(StandardCharsets.UTF_8));
+        return Cell.of(ByteBuffer.wrap(String.format("key%06d", key).getBytes(StandardCharsets.UTF_8)),
+                new Value(data, timestamp, false), generation);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2020 (c) OK
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ru.mail.polis.pokrovskiy;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Metadata written by {@link TableWriter}: the key range covers the cells of the table,
+ * so range tombstones kept by a compaction don't stretch a level table over its neighbours,
+ * and the Bloom filter is sized by the keys written rather than by the estimate it started from.
+ */
+class TableWriterTest {
+    private static final Config CONFIG = Config.defaults();
+
+    @Test
+    void keyRangeCoversOnlyCells(@TempDir File data) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (char c = 'm'; c <= 'p'; c++) {
+            cells.add(Cell.of(key(c), new Value(key(c), 1L, false), 1L));
+        }
+        final STable table = write(data, cells, new RangeTombstone(key('a'), key('z'), 2L));
+        try {
+            assertEquals(key('m'), table.getMinKey());
+            assertEquals(key('p'), table.getMaxKey());
+            assertFalse(table.inKeyRange(key('b')));
+            assertEquals(1, table.getRangeTombstones().size());
+            assertTrue(table.getRangeTombstones().get(0).covers(key('b'), 1L));
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void tombstoneOnlyTableTakesTombstoneBounds(@TempDir File data) throws IOException {
+        final STable table = write(data, Collections.emptyList(),
+                new RangeTombstone(key('c'), key('f'), 1L), new RangeTombstone(key('b'), key('d'), 2L));
+        try {
+            assertEquals(key('b'), table.getMinKey());
+            assertEquals(key('f'), table.getMaxKey());
+            assertTrue(table.inKeyRange(key('e')));
+        } finally {
+            table.close();
+        }
+    }
+
+    @Test
+    void filterShrinksToWrittenKeys(@TempDir File data) throws IOException {
+        final List<Cell> cells = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer key = ByteBuffer.wrap(String.format("key%06d", i).getBytes(StandardCharsets.UTF_8));
+            cells.add(Cell.of(key, new Value(key, 1L, false), 1L));
+        }
+        final Statistics statistics = new Statistics();
+        final BlockCache cache = new BlockCache(0, statistics);
+        // A merge of many tables may estimate far more keys than it writes
+        final STable exact = STable.writeTable(cells.iterator(), cells.size(), 1L, 1, 1L, List.of(), data.toPath(),
+                CONFIG, cache, statistics);
+        final STable estimated = STable.writeTable(cells.iterator(), 1_000_000, 2L, 1, 2L, List.of(), data.toPath(),
+                CONFIG, cache, statistics);
+        try {
+            assertEquals(exact.sizeInBytes(), estimated.sizeInBytes());
+            assertEquals(cells.size(), estimated.estimateKeyCount());
+            for (final Cell cell : cells) {
+                assertTrue(estimated.mightContain(cell.getKey()));
+            }
+        } finally {
+            exact.close();
+            estimated.close();
+        }
+    }
+
+    @NotNull
+    private static STable write(@NotNull final File data,
+                                @NotNull final List<Cell> cells,
+                                @NotNull final RangeTombstone... tombstones) throws IOException {
+        final Statistics statistics = new Statistics();
+        return STable.writeTable(cells.iterator(), cells.size(), 1L, 1, 1L, List.of(tombstones), data.toPath(), CONFIG,
+                new BlockCache(0, statistics), statistics);
+    }
+
+    @NotNull
+    private static ByteBuffer key(final char c) {
+        return ByteBuffer.wrap(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+    }
+}